@@ -0,0 +1,220 @@
+package com.example.imageloader;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+import android.annotation.SuppressLint;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.Build.VERSION_CODES;
+
+// 可复用Bitmap的池，按config和字节数分桶，解码时通过inBitmap复用，减少内存分配和GC
+// 只有既不在内存缓存中、也没有ImageView在显示的Bitmap才会进入池
+public class BitmapPool {
+	// KitKat以上复用的Bitmap最多可以比需要的大几倍，太大的浪费内存
+	private static final int MAX_SIZE_MULTIPLE = 4;
+
+	private final long mMaxSize;
+	// 当前的上限，内存紧张时小于mMaxSize
+	private long mLimit;
+	private long mSize = 0;
+	// config -> 字节数 -> 这个大小的Bitmap
+	private final HashMap<Bitmap.Config, TreeMap<Integer, LinkedList<Bitmap>>> mBuckets = new HashMap<Bitmap.Config, TreeMap<Integer, LinkedList<Bitmap>>>();
+	// 放入的顺序，超出上限时先淘汰最早放入的
+	private final LinkedList<Bitmap> mOrder = new LinkedList<Bitmap>();
+
+	// 正在显示的次数，以及已经离开内存缓存的Bitmap，使用弱引用，不会阻止回收
+	private final WeakHashMap<Bitmap, Integer> mDisplayCounts = new WeakHashMap<Bitmap, Integer>();
+	private final WeakHashMap<Bitmap, Boolean> mUncached = new WeakHashMap<Bitmap, Boolean>();
+	// 交给了调用者的Bitmap，不知道何时不再使用，永远不复用
+	private final WeakHashMap<Bitmap, Boolean> mPinned = new WeakHashMap<Bitmap, Boolean>();
+
+	private int mHitCount = 0;
+	private int mMissCount = 0;
+	private int mPutCount = 0;
+	private int mEvictionCount = 0;
+
+	public BitmapPool(long maxSizeInBytes) {
+		mMaxSize = maxSizeInBytes;
+		mLimit = maxSizeInBytes;
+	}
+
+	// 取一个可以用作inBitmap的Bitmap，没有合适的返回null
+	public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+		if (width <= 0 || height <= 0 || config == null) {
+			return null;
+		}
+		TreeMap<Integer, LinkedList<Bitmap>> bucket = mBuckets.get(config);
+		Bitmap bitmap = null;
+		if (bucket != null) {
+			int needed = width * height * bytesPerPixel(config);
+			if (Build.VERSION.SDK_INT >= VERSION_CODES.KITKAT) {
+				// KitKat以上只要求复用的Bitmap不小于解码结果
+				Map.Entry<Integer, LinkedList<Bitmap>> entry = bucket
+						.ceilingEntry(needed);
+				if (entry != null
+						&& entry.getKey() <= needed * MAX_SIZE_MULTIPLE) {
+					bitmap = entry.getValue().peekFirst();
+				}
+			} else {
+				// 之前的版本要求尺寸完全一致
+				LinkedList<Bitmap> bitmaps = bucket.get(needed);
+				if (bitmaps != null) {
+					for (Bitmap candidate : bitmaps) {
+						if (candidate.getWidth() == width
+								&& candidate.getHeight() == height) {
+							bitmap = candidate;
+							break;
+						}
+					}
+				}
+			}
+		}
+		if (bitmap == null) {
+			mMissCount++;
+			return null;
+		}
+		removeFromBucket(bitmap);
+		mOrder.remove(bitmap);
+		mSize -= byteCountOf(bitmap);
+		mHitCount++;
+		return bitmap;
+	}
+
+	// 解码失败没有用上的Bitmap放回池中
+	public synchronized void put(Bitmap bitmap) {
+		if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()
+				|| mPinned.containsKey(bitmap)) {
+			return;
+		}
+		int size = byteCountOf(bitmap);
+		if (size > mLimit) {
+			return;
+		}
+		TreeMap<Integer, LinkedList<Bitmap>> bucket = mBuckets.get(bitmap
+				.getConfig());
+		if (bucket == null) {
+			bucket = new TreeMap<Integer, LinkedList<Bitmap>>();
+			mBuckets.put(bitmap.getConfig(), bucket);
+		}
+		LinkedList<Bitmap> bitmaps = bucket.get(size);
+		if (bitmaps == null) {
+			bitmaps = new LinkedList<Bitmap>();
+			bucket.put(size, bitmaps);
+		}
+		bitmaps.addLast(bitmap);
+		mOrder.addLast(bitmap);
+		mSize += size;
+		mPutCount++;
+		trimToSize(mLimit);
+	}
+
+	// ImageView开始显示这个Bitmap
+	public synchronized void acquire(Bitmap bitmap) {
+		Integer count = mDisplayCounts.get(bitmap);
+		mDisplayCounts.put(bitmap, count == null ? 1 : count + 1);
+	}
+
+	// ImageView不再显示这个Bitmap，如果它也不在内存缓存中就可以复用了
+	public synchronized void release(Bitmap bitmap) {
+		Integer count = mDisplayCounts.get(bitmap);
+		if (count == null) {
+			return;
+		}
+		if (count > 1) {
+			mDisplayCounts.put(bitmap, count - 1);
+			return;
+		}
+		mDisplayCounts.remove(bitmap);
+		if (mUncached.remove(bitmap) != null) {
+			put(bitmap);
+		}
+	}
+
+	// Bitmap被内存缓存移除，如果没有ImageView在显示就可以复用了
+	public synchronized void onCacheRemoved(Bitmap bitmap) {
+		if (mDisplayCounts.containsKey(bitmap)) {
+			mUncached.put(bitmap, Boolean.TRUE);
+		} else {
+			put(bitmap);
+		}
+	}
+
+	// 交给调用者的Bitmap不能被复用
+	public synchronized void pin(Bitmap bitmap) {
+		mPinned.put(bitmap, Boolean.TRUE);
+	}
+
+	public synchronized void clear() {
+		trimToSize(0);
+	}
+
+	// 把上限调整为最大容量的fraction倍，超出的Bitmap立即丢弃
+	public synchronized void setCapacityFraction(float fraction) {
+		mLimit = (long) (mMaxSize * fraction);
+		trimToSize(mLimit);
+	}
+
+	private void trimToSize(long maxSize) {
+		while (mSize > maxSize && !mOrder.isEmpty()) {
+			Bitmap bitmap = mOrder.removeFirst();
+			removeFromBucket(bitmap);
+			mSize -= byteCountOf(bitmap);
+			mEvictionCount++;
+		}
+	}
+
+	private void removeFromBucket(Bitmap bitmap) {
+		TreeMap<Integer, LinkedList<Bitmap>> bucket = mBuckets.get(bitmap
+				.getConfig());
+		int size = byteCountOf(bitmap);
+		LinkedList<Bitmap> bitmaps = bucket.get(size);
+		bitmaps.remove(bitmap);
+		if (bitmaps.isEmpty()) {
+			bucket.remove(size);
+		}
+	}
+
+	public synchronized long size() {
+		return mSize;
+	}
+
+	public synchronized int hitCount() {
+		return mHitCount;
+	}
+
+	public synchronized int missCount() {
+		return mMissCount;
+	}
+
+	@SuppressLint("NewApi")
+	static int byteCountOf(Bitmap bitmap) {
+		if (Build.VERSION.SDK_INT >= VERSION_CODES.KITKAT) {
+			return bitmap.getAllocationByteCount();
+		}
+		return bitmap.getByteCount();
+	}
+
+	static int bytesPerPixel(Bitmap.Config config) {
+		switch (config) {
+		case ALPHA_8:
+			return 1;
+		case RGB_565:
+		case ARGB_4444:
+			return 2;
+		default:
+			return 4;
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "BitmapPool[size=" + mSize + ", max=" + mMaxSize + ", limit="
+				+ mLimit + ", hits="
+				+ mHitCount + ", misses=" + mMissCount + ", puts=" + mPutCount
+				+ ", evictions=" + mEvictionCount + "]";
+	}
+}
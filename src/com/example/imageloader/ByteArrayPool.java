@@ -0,0 +1,36 @@
+package com.example.imageloader;
+
+import java.util.ArrayDeque;
+
+// 固定大小的byte[]缓冲池，避免每次拷贝都重新分配缓冲区
+public class ByteArrayPool {
+	private final int mBufferSize;
+	private final int mMaxBuffers;
+	private final ArrayDeque<byte[]> mBuffers = new ArrayDeque<byte[]>();
+
+	public ByteArrayPool(int bufferSize, int maxBuffers) {
+		mBufferSize = bufferSize;
+		mMaxBuffers = maxBuffers;
+	}
+
+	public synchronized byte[] get() {
+		byte[] buffer = mBuffers.poll();
+		if (buffer == null) {
+			buffer = new byte[mBufferSize];
+		}
+		return buffer;
+	}
+
+	// 归还缓冲区，池满或者大小不对的直接丢弃
+	public synchronized void recycle(byte[] buffer) {
+		if (buffer == null || buffer.length != mBufferSize
+				|| mBuffers.size() >= mMaxBuffers) {
+			return;
+		}
+		mBuffers.offer(buffer);
+	}
+
+	public int getBufferSize() {
+		return mBufferSize;
+	}
+}
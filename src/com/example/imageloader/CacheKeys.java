@@ -0,0 +1,264 @@
+package com.example.imageloader;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import android.support.v4.util.LruCache;
+
+// url到缓存key的转换，结果按url缓存，列表滑动时反复绑定同一批url只需要查一次表。
+// 摘要对象和缓冲区每个线程一份，计算key时除了结果字符串不分配内存
+final class CacheKeys {
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	private static final int HASH_BYTES = 16;
+
+	private static final ThreadLocal<Scratch> sScratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	private final LruCache<String, Keys> mKeys;
+	private final boolean mFastMemoryKeys;
+
+	// fastMemoryKeys为true时内存缓存使用128位的MurmurHash3，key只在进程内使用，
+	// 不需要MD5的抗碰撞能力；磁盘缓存的key总是MD5，与已有的缓存文件保持一致
+	CacheKeys(int maxEntries, boolean fastMemoryKeys) {
+		mFastMemoryKeys = fastMemoryKeys;
+		mKeys = new LruCache<String, Keys>(maxEntries) {
+			@Override
+			protected Keys create(String url) {
+				return new Keys(url);
+			}
+		};
+	}
+
+	// 磁盘缓存的key
+	String diskKey(String url) {
+		return mKeys.get(url).diskKey();
+	}
+
+	// 内存缓存的key以它开头，进行中的表也按它区分url
+	String memoryKey(String url) {
+		return mKeys.get(url).memoryKey;
+	}
+
+	// url按spec解码后在内存缓存和进行中的表里的key，与spec.memoryKey(memoryKey(url))相同
+	String memoryKey(String url, DecodeSpec spec) {
+		return mKeys.get(url).memoryKey(spec);
+	}
+
+	private final class Keys {
+		private final String mUrl;
+		final String memoryKey;
+		// 内存命中时用不到，第一次需要时才计算，多个线程同时计算的结果相同
+		private volatile String mDiskKey;
+		// 上一次用到的解码参数和拼好的key，同一个url通常只按一种参数显示，重复绑定时不再拼接字符串
+		private volatile SpecKey mLastSpecKey;
+
+		Keys(String url) {
+			mUrl = url;
+			if (mFastMemoryKeys) {
+				memoryKey = murmur3Hex(url);
+			} else {
+				memoryKey = md5Hex(url);
+				mDiskKey = memoryKey;
+			}
+		}
+
+		String diskKey() {
+			String diskKey = mDiskKey;
+			if (diskKey == null) {
+				diskKey = md5Hex(mUrl);
+				mDiskKey = diskKey;
+			}
+			return diskKey;
+		}
+
+		String memoryKey(DecodeSpec spec) {
+			SpecKey last = mLastSpecKey;
+			if (last != null && (last.spec == spec || last.spec.equals(spec))) {
+				return last.key;
+			}
+			SpecKey specKey = new SpecKey(spec, spec.memoryKey(memoryKey));
+			mLastSpecKey = specKey;
+			return specKey.key;
+		}
+	}
+
+	// 解码参数和对应的内存缓存key，作为一个整体替换，读的线程不会看到不配对的两个值
+	private static final class SpecKey {
+		final DecodeSpec spec;
+		final String key;
+
+		SpecKey(DecodeSpec spec, String key) {
+			this.spec = spec;
+			this.key = key;
+		}
+	}
+
+	// url的UTF-8编码的MD5，32位小写十六进制
+	static String md5Hex(String url) {
+		Scratch scratch = sScratch.get();
+		if (scratch.digest == null) {
+			return String.valueOf(url.hashCode());
+		}
+		int length = scratch.encodeUtf8(url);
+		scratch.digest.update(scratch.bytes, 0, length);
+		try {
+			scratch.digest.digest(scratch.hash, 0, HASH_BYTES);
+		} catch (DigestException e) {
+			// 缓冲区长度足够，不会发生
+			throw new AssertionError(e);
+		}
+		char[] chars = scratch.chars;
+		for (int i = 0; i < HASH_BYTES; i++) {
+			int b = scratch.hash[i] & 0xff;
+			chars[i * 2] = HEX_DIGITS[b >>> 4];
+			chars[i * 2 + 1] = HEX_DIGITS[b & 0x0f];
+		}
+		return new String(chars);
+	}
+
+	// 128位的MurmurHash3（x64版本），直接按UTF-16的字符计算，不需要先编码成字节
+	static String murmur3Hex(String url) {
+		final long c1 = 0x87c37b91114253d5L;
+		final long c2 = 0x4cf5ad432745937fL;
+		int length = url.length();
+		long h1 = 0;
+		long h2 = 0;
+
+		// 每个16字节的块是8个字符
+		int i = 0;
+		for (; i + 8 <= length; i += 8) {
+			long k1 = charsToLong(url, i, 4);
+			long k2 = charsToLong(url, i + 4, 4);
+
+			k1 *= c1;
+			k1 = Long.rotateLeft(k1, 31);
+			k1 *= c2;
+			h1 ^= k1;
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+
+			k2 *= c2;
+			k2 = Long.rotateLeft(k2, 33);
+			k2 *= c1;
+			h2 ^= k2;
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		int remaining = length - i;
+		if (remaining > 4) {
+			long k2 = charsToLong(url, i + 4, remaining - 4);
+			k2 *= c2;
+			k2 = Long.rotateLeft(k2, 33);
+			k2 *= c1;
+			h2 ^= k2;
+		}
+		if (remaining > 0) {
+			long k1 = charsToLong(url, i, Math.min(remaining, 4));
+			k1 *= c1;
+			k1 = Long.rotateLeft(k1, 31);
+			k1 *= c2;
+			h1 ^= k1;
+		}
+
+		long byteLength = length * 2L;
+		h1 ^= byteLength;
+		h2 ^= byteLength;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix(h1);
+		h2 = fmix(h2);
+		h1 += h2;
+		h2 += h1;
+
+		char[] chars = sScratch.get().chars;
+		longToHex(h1, chars, 0);
+		longToHex(h2, chars, 16);
+		return new String(chars);
+	}
+
+	// 从index开始的count个字符，按小端顺序组成一个long
+	private static long charsToLong(String s, int index, int count) {
+		long k = 0;
+		for (int i = count - 1; i >= 0; i--) {
+			k = (k << 16) | s.charAt(index + i);
+		}
+		return k;
+	}
+
+	private static long fmix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	private static void longToHex(long value, char[] chars, int offset) {
+		for (int i = 15; i >= 0; i--) {
+			chars[offset + i] = HEX_DIGITS[(int) (value & 0x0f)];
+			value >>>= 4;
+		}
+	}
+
+	// 每个线程复用的摘要对象和缓冲区
+	private static final class Scratch {
+		final MessageDigest digest;
+		final byte[] hash = new byte[HASH_BYTES];
+		final char[] chars = new char[HASH_BYTES * 2];
+		byte[] bytes = new byte[256];
+
+		Scratch() {
+			MessageDigest digest = null;
+			try {
+				digest = MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				e.printStackTrace();
+			}
+			this.digest = digest;
+		}
+
+		// 编码到bytes中，返回字节数，结果与String.getBytes("UTF-8")相同
+		int encodeUtf8(String s) {
+			int length = s.length();
+			if (bytes.length < length * 3) {
+				bytes = new byte[length * 3];
+			}
+			byte[] out = bytes;
+			int count = 0;
+			for (int i = 0; i < length; i++) {
+				char c = s.charAt(i);
+				if (c < 0x80) {
+					out[count++] = (byte) c;
+				} else if (c < 0x800) {
+					out[count++] = (byte) (0xc0 | (c >> 6));
+					out[count++] = (byte) (0x80 | (c & 0x3f));
+				} else if (Character.isHighSurrogate(c) && i + 1 < length
+						&& Character.isLowSurrogate(s.charAt(i + 1))) {
+					int codePoint = Character.toCodePoint(c, s.charAt(++i));
+					out[count++] = (byte) (0xf0 | (codePoint >> 18));
+					out[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+					out[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+					out[count++] = (byte) (0x80 | (codePoint & 0x3f));
+				} else if (c >= Character.MIN_SURROGATE
+						&& c <= Character.MAX_SURROGATE) {
+					// 不成对的代理字符编码为'?'
+					out[count++] = '?';
+				} else {
+					out[count++] = (byte) (0xe0 | (c >> 12));
+					out[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+					out[count++] = (byte) (0x80 | (c & 0x3f));
+				}
+			}
+			return count;
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package com.example.imageloader;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// 每次绑定计算缓存key的开销，在开发机上用main运行，应用不会用到。
+// 比较原来每次新建MessageDigest的做法、CacheKeys的MD5和MurmurHash3，以及查表命中和未命中时的开销，
+// 未命中时url的数量是表容量的8倍。bind一行是bindBitmap中得到url key和内存缓存key的完整过程，
+// 包括拼上解码参数。需要android-support-v4.jar在classpath中。
+// 用法：CacheKeysBenchmark [每轮次数]
+final class CacheKeysBenchmark {
+	private static final int MEMO_SIZE = 512;
+	private static final int DEFAULT_ITERATIONS = 1000000;
+	private static final int ROUNDS = 3;
+
+	private CacheKeysBenchmark() {
+	}
+
+	private interface KeyFunction {
+		String key(String url);
+	}
+
+	// 改动前ImageLoader.hashKeyFromUrl的实现
+	private static String legacyKey(String url) {
+		String cacheKey;
+		try {
+			MessageDigest mDigest = MessageDigest.getInstance("MD5");
+			mDigest.update(url.getBytes());
+			cacheKey = bytesToHexString(mDigest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			cacheKey = String.valueOf(url.hashCode());
+			e.printStackTrace();
+		}
+		return cacheKey;
+	}
+
+	private static String bytesToHexString(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < bytes.length; i++) {
+			String hex = Integer.toHexString(0xFF & bytes[i]);
+			if (hex.length() == 1) {
+				sb.append('0');
+			}
+			sb.append(hex);
+		}
+		return sb.toString();
+	}
+
+	private static String[] urls(int count) {
+		String[] urls = new String[count];
+		for (int i = 0; i < count; i++) {
+			urls[i] = "https://images.example.com/gallery/2014/photos/IMG_"
+					+ (100000 + i * 7919) + ".jpg?w=720&q=85";
+		}
+		return urls;
+	}
+
+	// 返回每次调用的纳秒数
+	private static double measure(KeyFunction function, String[] urls,
+			int iterations) {
+		int hash = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			hash += function.key(urls[i % urls.length]).hashCode();
+		}
+		long elapsed = System.nanoTime() - start;
+		if (hash == 42) {
+			// 使用结果，避免循环被优化掉
+			System.out.print("");
+		}
+		return (double) elapsed / iterations;
+	}
+
+	public static void main(String[] args) {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0])
+				: DEFAULT_ITERATIONS;
+		String[] hotUrls = urls(MEMO_SIZE / 8);
+		String[] coldUrls = urls(MEMO_SIZE * 8);
+		final CacheKeys fastKeys = new CacheKeys(MEMO_SIZE, true);
+		final CacheKeys md5Keys = new CacheKeys(MEMO_SIZE, false);
+		final DecodeSpec spec = new DecodeSpec(240, 240);
+
+		KeyFunction legacy = new KeyFunction() {
+			@Override
+			public String key(String url) {
+				return legacyKey(url);
+			}
+		};
+		KeyFunction md5 = new KeyFunction() {
+			@Override
+			public String key(String url) {
+				return CacheKeys.md5Hex(url);
+			}
+		};
+		KeyFunction murmur = new KeyFunction() {
+			@Override
+			public String key(String url) {
+				return CacheKeys.murmur3Hex(url);
+			}
+		};
+		KeyFunction fastMemo = new KeyFunction() {
+			@Override
+			public String key(String url) {
+				return fastKeys.memoryKey(url);
+			}
+		};
+		KeyFunction md5Memo = new KeyFunction() {
+			@Override
+			public String key(String url) {
+				return md5Keys.memoryKey(url);
+			}
+		};
+
+		// 改动前bindBitmap中的做法，每次都计算摘要并拼接
+		KeyFunction legacyBind = new KeyFunction() {
+			@Override
+			public String key(String url) {
+				return spec.memoryKey(legacyKey(url));
+			}
+		};
+		KeyFunction bind = new KeyFunction() {
+			@Override
+			public String key(String url) {
+				fastKeys.memoryKey(url);
+				return fastKeys.memoryKey(url, spec);
+			}
+		};
+
+		// 第一轮是预热，最后一轮的结果可以参考
+		for (int round = 1; round <= ROUNDS; round++) {
+			System.out.println("round " + round + ", " + iterations
+					+ " calls, ns per call");
+			// 原来的做法慢得多，次数少一些
+			print("hashKeyFromUrl", measure(legacy, hotUrls, iterations / 10));
+			print("md5Hex", measure(md5, hotUrls, iterations));
+			print("murmur3Hex", measure(murmur, hotUrls, iterations));
+			print("memoryKey hit, murmur", measure(fastMemo, hotUrls, iterations));
+			print("memoryKey hit, md5", measure(md5Memo, hotUrls, iterations));
+			print("memoryKey miss, murmur", measure(fastMemo, coldUrls, iterations));
+			print("memoryKey miss, md5", measure(md5Memo, coldUrls, iterations));
+			print("bind, before", measure(legacyBind, hotUrls, iterations / 10));
+			print("bind, hit", measure(bind, hotUrls, iterations));
+			print("bind, miss", measure(bind, coldUrls, iterations));
+		}
+	}
+
+	private static void print(String name, double nanos) {
+		System.out.println(String.format("  %-24s %8.1f", name, nanos));
+	}
+}
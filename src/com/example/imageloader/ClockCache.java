@@ -0,0 +1,232 @@
+package com.example.imageloader;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// 分段的CLOCK缓存，用法与LruCache相同，但是读不加锁：
+// 查找走ConcurrentHashMap，命中时只设置节点的访问标记。
+// 写和淘汰按key的hash分段加锁，每段有自己的环和指针，指针扫过访问过的节点时清除标记，
+// 遇到没有访问过的节点就淘汰它，近似LRU。大小按sizeOf的字节数计算，上限对所有段共享，
+// 超出时从各段轮流淘汰，一张很大的图不受单个段容量的限制
+public abstract class ClockCache<K, V> {
+	private final ConcurrentHashMap<K, Node<K, V>> mMap;
+	private final Segment<K, V>[] mSegments;
+	private final int mSegmentMask;
+	private final AtomicLong mSize = new AtomicLong();
+	private volatile long mMaxSize;
+	// 下一个淘汰的段
+	private final AtomicInteger mEvictionSegment = new AtomicInteger();
+
+	public ClockCache(long maxSize) {
+		this(maxSize, Runtime.getRuntime().availableProcessors() * 2);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public ClockCache(long maxSize, int concurrencyLevel) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		int segmentCount = 1;
+		while (segmentCount < concurrencyLevel) {
+			segmentCount <<= 1;
+		}
+		mMaxSize = maxSize;
+		mMap = new ConcurrentHashMap<K, Node<K, V>>(16, 0.75f, segmentCount);
+		mSegments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			mSegments[i] = new Segment<K, V>();
+		}
+		mSegmentMask = segmentCount - 1;
+	}
+
+	// 不加锁，命中时标记为访问过
+	public final V get(K key) {
+		Node<K, V> node = mMap.get(key);
+		if (node == null) {
+			return null;
+		}
+		if (!node.referenced) {
+			// 已经标记过时不再写，避免多个线程反复写同一个缓存行
+			node.referenced = true;
+		}
+		return node.value;
+	}
+
+	// 返回被替换的旧值
+	public final V put(K key, V value) {
+		if (key == null || value == null) {
+			throw new NullPointerException("key == null || value == null");
+		}
+		Node<K, V> node = new Node<K, V>(key, value, sizeOf(key, value));
+		Segment<K, V> segment = segmentFor(key);
+		Node<K, V> previous;
+		synchronized (segment) {
+			previous = mMap.put(key, node);
+			if (previous != null) {
+				segment.unlink(previous);
+				mSize.addAndGet(-previous.size);
+			}
+			segment.link(node);
+			mSize.addAndGet(node.size);
+		}
+		if (previous != null) {
+			entryRemoved(false, key, previous.value, value);
+		}
+		trimToSize(mMaxSize);
+		return previous != null ? previous.value : null;
+	}
+
+	public final V remove(K key) {
+		Segment<K, V> segment = segmentFor(key);
+		Node<K, V> node;
+		synchronized (segment) {
+			node = mMap.remove(key);
+			if (node == null) {
+				return null;
+			}
+			segment.unlink(node);
+			mSize.addAndGet(-node.size);
+		}
+		entryRemoved(false, key, node.value, null);
+		return node.value;
+	}
+
+	// 修改上限，超出的部分立即淘汰
+	public void resize(long maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		mMaxSize = maxSize;
+		trimToSize(maxSize);
+	}
+
+	public void trimToSize(long maxSize) {
+		// 连续遇到所有的段都是空的说明已经没有可以淘汰的了
+		int emptySegments = 0;
+		while (mSize.get() > maxSize && emptySegments <= mSegmentMask) {
+			Segment<K, V> segment = mSegments[mEvictionSegment
+					.getAndIncrement() & mSegmentMask];
+			Node<K, V> victim;
+			synchronized (segment) {
+				victim = segment.evict();
+				if (victim != null) {
+					mMap.remove(victim.key, victim);
+					mSize.addAndGet(-victim.size);
+				}
+			}
+			if (victim == null) {
+				emptySegments++;
+				continue;
+			}
+			emptySegments = 0;
+			entryRemoved(true, victim.key, victim.value, null);
+		}
+	}
+
+	public final void evictAll() {
+		trimToSize(-1);
+	}
+
+	public final long size() {
+		return mSize.get();
+	}
+
+	public final long maxSize() {
+		return mMaxSize;
+	}
+
+	// 条目的大小，单位与maxSize相同，放入后不能改变
+	protected int sizeOf(K key, V value) {
+		return 1;
+	}
+
+	// 与LruCache相同，在锁外调用，evicted表示因为空间不足被淘汰
+	protected void entryRemoved(boolean evicted, K key, V oldValue,
+			V newValue) {
+	}
+
+	private Segment<K, V> segmentFor(K key) {
+		int h = key.hashCode();
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return mSegments[h & mSegmentMask];
+	}
+
+	@Override
+	public String toString() {
+		return "ClockCache[size=" + mSize.get() + ", max=" + mMaxSize
+				+ ", entries=" + mMap.size() + ", segments="
+				+ mSegments.length + "]";
+	}
+
+	private static final class Node<K, V> {
+		final K key;
+		final V value;
+		final int size;
+		// 上次指针经过后是否被访问过，新放入的节点没有
+		volatile boolean referenced;
+		// 环中的前后节点，由所在段的锁保护
+		Node<K, V> prev;
+		Node<K, V> next;
+
+		Node(K key, V value, int size) {
+			this.key = key;
+			this.value = value;
+			this.size = size;
+		}
+	}
+
+	// 一段中的节点组成一个环，hand指向下一个要检查的节点，也就是最早放入的节点
+	private static final class Segment<K, V> {
+		private Node<K, V> mHand;
+		private int mCount;
+
+		// 新节点放在hand之前，指针转一圈后才会检查到它
+		void link(Node<K, V> node) {
+			if (mHand == null) {
+				node.prev = node;
+				node.next = node;
+				mHand = node;
+			} else {
+				node.next = mHand;
+				node.prev = mHand.prev;
+				mHand.prev.next = node;
+				mHand.prev = node;
+			}
+			mCount++;
+		}
+
+		void unlink(Node<K, V> node) {
+			if (node.next == node) {
+				mHand = null;
+			} else {
+				if (mHand == node) {
+					mHand = node.next;
+				}
+				node.prev.next = node.next;
+				node.next.prev = node.prev;
+			}
+			node.prev = null;
+			node.next = null;
+			mCount--;
+		}
+
+		// 移动指针直到遇到没有访问过的节点，把它移出环并返回，段为空时返回null
+		Node<K, V> evict() {
+			// 扫描时读线程还可能重新设置标记，最多转两圈，之后直接淘汰指针处的节点
+			for (int i = 2 * mCount; i > 0 && mHand != null; i--) {
+				if (!mHand.referenced) {
+					break;
+				}
+				mHand.referenced = false;
+				mHand = mHand.next;
+			}
+			Node<K, V> victim = mHand;
+			if (victim != null) {
+				unlink(victim);
+			}
+			return victim;
+		}
+	}
+}
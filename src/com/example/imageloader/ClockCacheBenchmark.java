@@ -0,0 +1,151 @@
+package com.example.imageloader;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.support.v4.util.LruCache;
+
+// ClockCache与support库LruCache的比较，在开发机上用main运行，应用不会用到。
+// 每个线程随机访问比容量多10%的key，95%是读，未命中时写入，输出每秒的操作数和命中率。
+// LruCache的get和put都要拿同一把锁，线程数增加时可以看到两者的差别。
+// 用法：ClockCacheBenchmark [线程数...]，默认依次测1、2、4、8个线程
+final class ClockCacheBenchmark {
+	private static final int CAPACITY = 200;
+	private static final int KEYS = CAPACITY + CAPACITY / 10;
+	private static final int READ_PERCENT = 95;
+	private static final long WARMUP_MILLIS = 1000;
+	private static final long MEASURE_MILLIS = 2000;
+
+	private static final Integer[] BOXED_KEYS = new Integer[KEYS];
+	static {
+		for (int i = 0; i < KEYS; i++) {
+			BOXED_KEYS[i] = i;
+		}
+	}
+
+	private ClockCacheBenchmark() {
+	}
+
+	// 被测的缓存，两种实现没有共同的接口
+	private interface Cache {
+		Object get(Integer key);
+
+		void put(Integer key, Object value);
+	}
+
+	private static Cache lruCache() {
+		final LruCache<Integer, Object> cache = new LruCache<Integer, Object>(CAPACITY);
+		return new Cache() {
+			@Override
+			public Object get(Integer key) {
+				return cache.get(key);
+			}
+
+			@Override
+			public void put(Integer key, Object value) {
+				cache.put(key, value);
+			}
+		};
+	}
+
+	private static Cache clockCache() {
+		final ClockCache<Integer, Object> cache = new ClockCache<Integer, Object>(CAPACITY) {
+		};
+		return new Cache() {
+			@Override
+			public Object get(Integer key) {
+				return cache.get(key);
+			}
+
+			@Override
+			public void put(Integer key, Object value) {
+				cache.put(key, value);
+			}
+		};
+	}
+
+	// 返回{每秒操作数, 命中率}
+	private static double[] run(final Cache cache, int threadCount)
+			throws InterruptedException {
+		for (int i = 0; i < CAPACITY; i++) {
+			cache.put(BOXED_KEYS[i], BOXED_KEYS[i]);
+		}
+		final AtomicLong ops = new AtomicLong();
+		final AtomicLong gets = new AtomicLong();
+		final AtomicLong hits = new AtomicLong();
+		final long start = System.currentTimeMillis();
+		final long measureStart = start + WARMUP_MILLIS;
+		final long end = measureStart + MEASURE_MILLIS;
+		Thread[] threads = new Thread[threadCount];
+		for (int t = 0; t < threadCount; t++) {
+			final int seed = t * 0x9e3779b9 + 1;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					int random = seed;
+					long threadOps = 0;
+					long threadGets = 0;
+					long threadHits = 0;
+					boolean measuring = false;
+					while (true) {
+						// 每1000次检查一次时间，避免时间调用影响结果
+						long now = System.currentTimeMillis();
+						if (now >= end) {
+							break;
+						}
+						if (!measuring && now >= measureStart) {
+							measuring = true;
+							threadOps = 0;
+							threadGets = 0;
+							threadHits = 0;
+						}
+						for (int i = 0; i < 1000; i++) {
+							random ^= random << 13;
+							random ^= random >>> 17;
+							random ^= random << 5;
+							Integer key = BOXED_KEYS[(random >>> 1) % KEYS];
+							if ((random >>> 24) % 100 < READ_PERCENT) {
+								threadGets++;
+								if (cache.get(key) != null) {
+									threadHits++;
+								} else {
+									cache.put(key, key);
+								}
+							} else {
+								cache.put(key, key);
+							}
+						}
+						threadOps += 1000;
+					}
+					ops.addAndGet(threadOps);
+					gets.addAndGet(threadGets);
+					hits.addAndGet(threadHits);
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return new double[] { ops.get() * 1000.0 / MEASURE_MILLIS,
+				gets.get() == 0 ? 0 : (double) hits.get() / gets.get() };
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int[] threadCounts = { 1, 2, 4, 8 };
+		if (args.length > 0) {
+			threadCounts = new int[args.length];
+			for (int i = 0; i < args.length; i++) {
+				threadCounts[i] = Integer.parseInt(args[i]);
+			}
+		}
+		System.out.println(Runtime.getRuntime().availableProcessors() + " cpus, capacity "
+				+ CAPACITY + ", " + KEYS + " keys, " + READ_PERCENT + "% reads");
+		for (int threadCount : threadCounts) {
+			double[] lru = run(lruCache(), threadCount);
+			double[] clock = run(clockCache(), threadCount);
+			System.out.println(String.format(
+					"threads %2d  LruCache %7.2f Mops/s hits %5.1f%%  ClockCache %7.2f Mops/s hits %5.1f%%",
+					threadCount, lru[0] / 1e6, lru[1] * 100, clock[0] / 1e6, clock[1] * 100));
+		}
+	}
+}
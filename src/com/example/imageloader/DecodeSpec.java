@@ -0,0 +1,117 @@
+package com.example.imageloader;
+
+import android.graphics.Bitmap;
+
+// 解码参数，同一个url按不同的参数解码得到的是不同的Bitmap，内存缓存的key需要包含它
+public final class DecodeSpec {
+	// 解码后的尺寸如何对应目标尺寸
+	public enum ScaleType {
+		// 只按2的幂采样，结果宽高都不小于目标尺寸
+		SAMPLE,
+		// 缩放到整张图放进目标尺寸内
+		FIT_CENTER,
+		// 缩放到铺满目标尺寸，多出的部分由ImageView裁掉
+		CENTER_CROP
+	}
+
+	// 解码时如何选择Bitmap的config
+	public enum ConfigPolicy {
+		// 总是使用config
+		FIXED,
+		// 不透明的图片使用RGB_565，内存只有ARGB_8888的一半，可能透明的图片使用config。
+		// 只有JPEG能在解码前确定不透明，渐变较多的大图可能出现色带，适合缩略图
+		RGB_565_IF_OPAQUE
+	}
+
+	public final int width;
+	public final int height;
+	public final Bitmap.Config config;
+	public final ScaleType scaleType;
+	public final ConfigPolicy configPolicy;
+
+	public DecodeSpec(int width, int height) {
+		this(width, height, Bitmap.Config.ARGB_8888);
+	}
+
+	public DecodeSpec(int width, int height, Bitmap.Config config) {
+		this(width, height, config, ScaleType.SAMPLE);
+	}
+
+	public DecodeSpec(int width, int height, Bitmap.Config config,
+			ScaleType scaleType) {
+		this(width, height, config, scaleType, ConfigPolicy.FIXED);
+	}
+
+	public DecodeSpec(int width, int height, Bitmap.Config config,
+			ScaleType scaleType, ConfigPolicy configPolicy) {
+		this.width = width;
+		this.height = height;
+		this.config = config;
+		this.scaleType = scaleType;
+		this.configPolicy = configPolicy;
+	}
+
+	// 内存缓存的key，以url的key开头，用'_'分隔
+	// 解码出的config由config和configPolicy共同决定，两者都要包含
+	String memoryKey(String urlKey) {
+		return urlKey + "_" + width + "x" + height + "_" + config.name()
+				+ "_" + configPolicy.name() + "_" + scaleType.name();
+	}
+
+	// mimeType为解码尺寸时得到的格式，未知时为null
+	Bitmap.Config configFor(String mimeType) {
+		if (configPolicy == ConfigPolicy.RGB_565_IF_OPAQUE
+				&& "image/jpeg".equals(mimeType)) {
+			return Bitmap.Config.RGB_565;
+		}
+		return config;
+	}
+
+	// 这个config的Bitmap能否作为这个spec的解码结果
+	boolean accepts(Bitmap.Config bitmapConfig) {
+		return bitmapConfig == config
+				|| (configPolicy == ConfigPolicy.RGB_565_IF_OPAQUE
+						&& bitmapConfig == Bitmap.Config.RGB_565);
+	}
+
+	// 尺寸为sourceWidth x sourceHeight的图需要缩放的比例，大于1表示原图不够大
+	float scaleFor(int sourceWidth, int sourceHeight) {
+		float widthScale = (float) width / sourceWidth;
+		float heightScale = (float) height / sourceHeight;
+		if (scaleType == ScaleType.FIT_CENTER) {
+			return Math.min(widthScale, heightScale);
+		}
+		return Math.max(widthScale, heightScale);
+	}
+
+	static String urlKeyOf(String memoryKey) {
+		int index = memoryKey.indexOf('_');
+		return index == -1 ? memoryKey : memoryKey.substring(0, index);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof DecodeSpec)) {
+			return false;
+		}
+		DecodeSpec other = (DecodeSpec) o;
+		return width == other.width && height == other.height
+				&& config == other.config && scaleType == other.scaleType
+				&& configPolicy == other.configPolicy;
+	}
+
+	@Override
+	public int hashCode() {
+		return (((width * 31 + height) * 31 + config.hashCode()) * 31
+				+ scaleType.hashCode()) * 31 + configPolicy.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "DecodeSpec[" + width + "x" + height + ", " + config + ", "
+				+ configPolicy + ", " + scaleType + "]";
+	}
+}
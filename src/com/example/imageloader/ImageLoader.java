@@ -1,35 +1,42 @@
 package com.example.imageloader;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.WeakHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import libcore.io.DiskLruCache;
+import libcore.io.EvictionPolicies;
+import libcore.io.EvictionPolicy;
+import libcore.io.ShardedDiskLruCache;
 import android.annotation.SuppressLint;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Build;
 import android.os.Build.VERSION_CODES;
 import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.StatFs;
-import android.support.v4.util.LruCache;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.ImageView;
 
@@ -37,319 +44,1052 @@ public class ImageLoader {
 	private static final String TAG = "ImageLoader";
 
 	private Context mContext;
-	private LruCache<String, Bitmap> mMemoryCache;
-	private DiskLruCache mDiskCache;
-	private ImageResizer mImageResizer = new ImageResizer();
+	private MemoryCache mMemoryCache;
+	private ShardedDiskLruCache mDiskCache;
+	private BitmapPool mBitmapPool;
+	private ImageResizer mImageResizer;
+	private StreamCopier mStreamCopier = new StreamCopier(sBufferPool);
 
 	private boolean mIsDiskCacheCreated = false;
 
-	// ̻С
+	// 磁盘缓存在后台线程中打开，打开之前的磁盘阶段先排队，打开后再提交
+	private final Object mDiskCacheLock = new Object();
+	private boolean mDiskCacheStarting = true;
+	private final List<LoadRequest> mPendingDiskRequests = new ArrayList<LoadRequest>();
+
+	// 磁盘缓存大小
 	private static final long DISK_CACHE_SIZE = 10 * 1024 * 1024;
+	// 磁盘缓存分片数，每个分片有独立的目录、日志和锁
+	private static final int DISK_CACHE_SHARDS = 4;
+	// 不超过这个大小的图片打包存放在段文件中
+	private static final int PACKED_VALUE_MAX_BYTES = 32 * 1024;
+	// 磁盘缓存淘汰策略：新图片只有比将被淘汰的图片访问更频繁时才能留下，
+	// 读过的图片受保护，浏览一遍大图库不会把到处显示的头像挤出缓存
+	private static final EvictionPolicy.Factory DISK_EVICTION_POLICY = EvictionPolicies
+			.tinyLfu(EvictionPolicies.segmentedLru(0.8f), 20 * 1024);
 
-	// һڵֻһݣindexΪ0
+	// 每16次磁盘命中只有1次写入日志，访问顺序在内存中总是准确的，压缩日志时完整写入，
+	// 只有崩溃时会丢失最近的顺序，淘汰策略的频率统计本来就只在内存中
+	private static final int DISK_READ_RECORD_INTERVAL = 16;
+	// 磁盘缓存的版本，每个节点的数据个数改变时需要增加
+	private static final int DISK_CACHE_VERSION = 2;
+	// 节点的第0个数据是下载的原图
 	private static final int DISK_CACHE_INDEX = 0;
+	// 之后的数据是缩小后重新编码的图，第i个的短边为VARIANT_SIZES[i - 1]，
+	// 目标宽高都不超过这个值的请求可以直接解码它，不用每次读取和缩小原图
+	private static final int[] VARIANT_SIZES = { 128, 256, 512 };
+	private static final int DISK_CACHE_VALUE_COUNT = 1 + VARIANT_SIZES.length;
+	// 缩小后的图还没有生成时长度为0，生成了也不比原图小时写入这个标记，以后直接用原图
+	private static final String VARIANT_NOT_NEEDED = "-";
+	private static final int VARIANT_QUALITY = 85;
+
+	// 缓存最近用过的url的key，列表来回滑动时不用重新计算摘要
+	private static final int KEY_CACHE_SIZE = 512;
+	// 内存缓存的key用MurmurHash3代替MD5，比MD5快很多，磁盘缓存的key不受影响
+	private static final boolean FAST_MEMORY_KEYS = true;
+
+	// 内存紧张时缩小的容量，在这段时间内没有新的警告后，下次加载图片时恢复
+	private static final long CAPACITY_RESTORE_DELAY_MILLIS = 30 * 1000;
 
-	private static final int IO_BUFFER_SIZE = 5 * 1024;
+	// 下载时每次拷贝的块大小
+	private static final int COPY_BUFFER_SIZE = 16 * 1024;
 
 	private static final int TAG_KEY_URI = R.id.imageloader_uri;
+	private static final int TAG_KEY_REQUEST = R.id.imageloader_request;
+	private static final int TAG_KEY_BITMAP = R.id.imageloader_bitmap;
 
 	private static final int MESSAGE_POST_RESULT = 1;
 
 	private static final int CPU_COUNT = Runtime.getRuntime()
 			.availableProcessors();
-	private static final int CORE_POOL_SIZE = CPU_COUNT + 1;
-	private static final int MAXIMUM_POOL_SIZE = CPU_COUNT * 2 + 1;
+	// 每个阶段使用独立的线程池，慢速的网络连接不会占住读磁盘和解码的线程
+	private static final int DISK_POOL_SIZE = 2;
+	private static final int NETWORK_POOL_SIZE = CPU_COUNT + 1;
+	private static final int DECODE_POOL_SIZE = CPU_COUNT;
 	private static final long ALIVE = 10L;
 
-	private static final ThreadFactory sThreadFactory = new ThreadFactory() {
-		private final AtomicInteger mCount = new AtomicInteger(1);
+	// 下载缓冲区池，所有ImageLoader共享，数量与网络线程数一致
+	private static final ByteArrayPool sBufferPool = new ByteArrayPool(
+			COPY_BUFFER_SIZE, NETWORK_POOL_SIZE);
 
-		@Override
-		public Thread newThread(Runnable r) {
-			return new Thread(r, "ImageLoader#" + mCount.getAndIncrement());
-		}
-	};
+	// 各阶段的线程池，队列按优先级排序，同优先级时后提交的先执行，保证滑动停止后可见的图片先加载
+	private static final ThreadPoolExecutor DISK_EXECUTOR = newStageExecutor(
+			DISK_POOL_SIZE, "disk");
+	private static final ThreadPoolExecutor NETWORK_EXECUTOR = newStageExecutor(
+			NETWORK_POOL_SIZE, "network");
+	private static final ThreadPoolExecutor DECODE_EXECUTOR = newStageExecutor(
+			DECODE_POOL_SIZE, "decode");
 
-	// ̳߳
-	private static final Executor THREAD_POOL_EXECUTOR = new ThreadPoolExecutor(
-			CORE_POOL_SIZE, MAXIMUM_POOL_SIZE, ALIVE, TimeUnit.SECONDS,
-			new LinkedBlockingQueue<Runnable>(), sThreadFactory);
+	private static final AtomicLong sRequestSequence = new AtomicLong();
+
+	// 整个进程共享的实例，内存缓存、Bitmap池和磁盘缓存的大小都是全局的，
+	// 同一个目录也只有一份日志在写
+	private static volatile ImageLoader sInstance;
+
+	// url到缓存key的转换，key只取决于url，所有ImageLoader共享
+	private static final CacheKeys sCacheKeys = new CacheKeys(KEY_CACHE_SIZE,
+			FAST_MEMORY_KEYS);
+
+	// 正在进行中的加载，key为内存缓存key
+	private final HashMap<String, LoadRequest> mInFlightRequests = new HashMap<String, LoadRequest>();
+	// 已经提交、还没有生成完的缩小图，磁盘key + "_" + 数据序号
+	private final HashSet<String> mPendingVariants = new HashSet<String>();
+	// 正在下载的磁盘key，进行中的表按内存key区分尺寸，下载需要按磁盘key合并
+	private final HashMap<String, Object> mDownloads = new HashMap<String, Object>();
+
+	// 内存缓存和Bitmap池当前容量占最大容量的比例，以及恢复的时间，0表示没有缩小，
+	// 缩小期间暂停预加载
+	private final Object mCapacityLock = new Object();
+	private float mCapacityFraction = 1f;
+	private volatile long mCapacityRestoreAt = 0;
+	// 收到的内存警告次数和因此释放的字节数
+	private int mTrimCount = 0;
+	private long mTrimmedBytes = 0;
+	// 创建过的预加载器，只在主线程中访问
+	private final WeakHashMap<ScrollPrefetcher, Boolean> mPrefetchers = new WeakHashMap<ScrollPrefetcher, Boolean>();
 
 	private Handler mMainHandler = new Handler(Looper.getMainLooper()) {
 		public void handleMessage(android.os.Message msg) {
 			LoaderResult result = (LoaderResult) msg.obj;
 			ImageView imageView = result.imageView;
 			String uri = (String) imageView.getTag(TAG_KEY_URI);
-			if (uri.equals(result.uri)) {
-				imageView.setImageBitmap(result.bitmap);
+			if (result.uri.equals(uri)) {
+				setImageBitmap(imageView, result.bitmap);
 			} else {
-				Log.w(TAG, "ͼƬurlѾı");
+				Log.w(TAG, "图片url可能已经改变");
+				mBitmapPool.release(result.bitmap);
 			}
 		};
 	};
 
 	private ImageLoader(Context context) {
 		mContext = context.getApplicationContext();
-		// ڴ滺ռĴС
+		// 设置内存缓存空间的大小
 		int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
 		int cacheSize = maxMemory / 8;
 
-		// ʵLruCache
-		mMemoryCache = new LruCache<String, Bitmap>(cacheSize) {
-			// BitmapĴС
+		// 可复用Bitmap的池，大小为内存缓存的1/4
+		mBitmapPool = new BitmapPool(cacheSize / 4 * 1024L);
+		mImageResizer = new ImageResizer(mBitmapPool);
+
+		// 实例化内存缓存
+		mMemoryCache = new MemoryCache(cacheSize * 1024L, mBitmapPool);
+
+		// 实例是整个进程共享的，注册一次后不需要注销
+		mContext.registerComponentCallbacks(new ComponentCallbacks2() {
+
 			@Override
-			protected int sizeOf(String key, Bitmap bitmap) {
-				return bitmap.getRowBytes() * bitmap.getHeight() / 1024;
+			public void onTrimMemory(int level) {
+				trimMemory(level);
 			}
-		};
 
-		// ̻Ŀ¼
-		File diskCacheDir = getDiskCacheDir(mContext, "bitmap");
-		if (!diskCacheDir.exists()) {
-			diskCacheDir.mkdirs();
-		}
+			@Override
+			public void onLowMemory() {
+				trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+			}
+
+			@Override
+			public void onConfigurationChanged(Configuration newConfig) {
+			}
+		});
 
-		if (getUsableSpace(diskCacheDir) > DISK_CACHE_SIZE) {
-			try {
-				mDiskCache = DiskLruCache.open(diskCacheDir, 1, 1,
-						DISK_CACHE_SIZE);
-				mIsDiskCacheCreated = true;
-			} catch (IOException e) {
-				e.printStackTrace();
+		// 构造函数在主线程中调用，磁盘缓存的目录和日志都在后台线程中处理
+		new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				openDiskCache();
+			}
+		}, "ImageLoader-open").start();
+	}
+
+	private void openDiskCache() {
+		ShardedDiskLruCache diskCache = null;
+		try {
+			// 创建磁盘缓存的目录
+			File diskCacheDir = getDiskCacheDir(mContext, "bitmap");
+			if (!diskCacheDir.exists()) {
+				diskCacheDir.mkdirs();
+			}
+
+			if (getUsableSpace(diskCacheDir) > DISK_CACHE_SIZE) {
+				// 二进制日志加检查点，冷启动时只需要重放检查点之后的记录
+				// 小缩略图追加到共享的段文件中，不必每张图都创建、重命名和打开一个文件
+				diskCache = ShardedDiskLruCache.open(diskCacheDir,
+						DISK_CACHE_VERSION, DISK_CACHE_VALUE_COUNT,
+						DISK_CACHE_SIZE, DISK_CACHE_SHARDS,
+						new DiskLruCache.Options().binaryJournal(true)
+								.packValuesUpTo(PACKED_VALUE_MAX_BYTES)
+								.evictionPolicy(DISK_EVICTION_POLICY)
+								.recordReadsEvery(DISK_READ_RECORD_INTERVAL));
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			List<LoadRequest> pending;
+			synchronized (mDiskCacheLock) {
+				mDiskCache = diskCache;
+				mIsDiskCacheCreated = diskCache != null;
+				mDiskCacheStarting = false;
+				mDiskCacheLock.notifyAll();
+				pending = new ArrayList<LoadRequest>(mPendingDiskRequests);
+				mPendingDiskRequests.clear();
+			}
+			for (LoadRequest request : pending) {
+				scheduleDiskStage(request);
 			}
 		}
 	}
-	
-	public static ImageLoader build(Context context){
-		return new ImageLoader(context);
+
+	// 等待磁盘缓存打开，返回null表示没有磁盘缓存，不能在主线程中调用
+	private ShardedDiskLruCache awaitDiskCache() {
+		synchronized (mDiskCacheLock) {
+			while (mDiskCacheStarting) {
+				try {
+					mDiskCacheLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return null;
+				}
+			}
+			return mDiskCache;
+		}
 	}
 
-	// ӵڴ滺
-	private void addBitmapToMemoryCache(String key, Bitmap bitmap) {
-		if (getBitmapFromMemCache(key) == null) {
-			mMemoryCache.put(key, bitmap);
+	// 返回进程共享的实例，第一次调用时创建，只保留Application Context
+	public static ImageLoader build(Context context) {
+		ImageLoader instance = sInstance;
+		if (instance == null) {
+			synchronized (ImageLoader.class) {
+				instance = sInstance;
+				if (instance == null) {
+					instance = new ImageLoader(context);
+					sInstance = instance;
+				}
+			}
 		}
+		return instance;
 	}
 
-	private Bitmap getBitmapFromMemCache(String key) {
-		return mMemoryCache.get(key);
+	// 每个页面一个，页面销毁时取消它发起的加载，释放它显示的图片
+	public RequestScope newScope() {
+		return new RequestScope(this);
 	}
 
-	private Bitmap loadBitmapFromHttp(String url, int reqWidth, int reqHeight)
-			throws IOException {
-		if (Looper.myLooper() == Looper.getMainLooper()) {
-			throw new RuntimeException("߳з");
+	private static ThreadPoolExecutor newStageExecutor(int poolSize,
+			final String stage) {
+		ThreadFactory threadFactory = new ThreadFactory() {
+			private final AtomicInteger mCount = new AtomicInteger(1);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(r, "ImageLoader-" + stage + "#"
+						+ mCount.getAndIncrement());
+			}
+		};
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize,
+				poolSize, ALIVE, TimeUnit.SECONDS,
+				new PriorityBlockingQueue<Runnable>(), threadFactory);
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	// 添加到内存缓存。放入之前先acquire，放入后立即被淘汰也不会进入Bitmap池，
+	// 这次加载持有的引用在finishRequest交给ImageView之后释放
+	private void addBitmapToMemoryCache(String urlKey, DecodeSpec spec,
+			Bitmap bitmap) {
+		restoreCapacityIfCalm();
+		mBitmapPool.acquire(bitmap);
+		mMemoryCache.put(urlKey, spec, bitmap);
+	}
+
+	// 按内存紧张的程度缩小内存缓存和Bitmap池，并暂停预加载，在主线程中调用
+	private void trimMemory(int level) {
+		float fraction;
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+			// 进程在后台列表的中后部，随时可能被杀，全部释放
+			fraction = 0f;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+			fraction = 0.25f;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+			// 界面刚刚不可见，留一半，回到前台时大部分图片还能直接显示
+			fraction = 0.5f;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+			fraction = 0.25f;
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			fraction = 0.5f;
+		} else {
+			fraction = 0.75f;
 		}
 
-		if (mDiskCache == null) {
-			return null;
+		synchronized (mCapacityLock) {
+			// 只缩小不放大，较轻的警告不会恢复之前缩小的容量
+			fraction = Math.min(fraction, mCapacityFraction);
+			mCapacityFraction = fraction;
+			mCapacityRestoreAt = SystemClock.uptimeMillis()
+					+ CAPACITY_RESTORE_DELAY_MILLIS;
+			long before = mMemoryCache.sizeInBytes() + mBitmapPool.size();
+			// 移出内存缓存的图片先进入Bitmap池，所以最后缩小池
+			mMemoryCache.setCapacityFraction(fraction);
+			mBitmapPool.setCapacityFraction(fraction);
+			// 仍在显示的图片也算在内，它们在ImageView释放后才真正被回收
+			long released = before - mMemoryCache.sizeInBytes()
+					- mBitmapPool.size();
+			mTrimCount++;
+			mTrimmedBytes += released;
+			Log.i(TAG, "onTrimMemory level=" + level + ", released "
+					+ released + " bytes, capacity " + fraction + ", total "
+					+ mTrimmedBytes + " bytes in " + mTrimCount + " events");
 		}
 
-		String key = hashKeyFromUrl(url);
-		DiskLruCache.Editor editor = mDiskCache.edit(key);
-		if (editor != null) {
-			OutputStream out = editor.newOutputStream(DISK_CACHE_INDEX);
-			// سɹcommit,abort
-			if (downloadUrlToStream(url, out)) {
-				editor.commit();
-			} else {
-				editor.abort();
+		for (ScrollPrefetcher prefetcher : new ArrayList<ScrollPrefetcher>(
+				mPrefetchers.keySet())) {
+			prefetcher.cancelAll();
+		}
+	}
+
+	// 缩小容量后一段时间没有新的内存警告，恢复到最大容量
+	private void restoreCapacityIfCalm() {
+		long restoreAt = mCapacityRestoreAt;
+		if (restoreAt == 0 || SystemClock.uptimeMillis() < restoreAt) {
+			return;
+		}
+		synchronized (mCapacityLock) {
+			if (mCapacityRestoreAt != restoreAt) {
+				return;
 			}
-			mDiskCache.flush();
+			mCapacityFraction = 1f;
+			mCapacityRestoreAt = 0;
+			mMemoryCache.setCapacityFraction(1f);
+			mBitmapPool.setCapacityFraction(1f);
 		}
+	}
 
-		return loadBitmapFromDiskCache(url, reqWidth, reqHeight);
+	void registerPrefetcher(ScrollPrefetcher prefetcher) {
+		mPrefetchers.put(prefetcher, Boolean.TRUE);
 	}
 
-	// Ӵ̻мͼƬ
-	private Bitmap loadBitmapFromDiskCache(String url, int reqWidth,
-			int reqHeight) throws IOException {
+	private Bitmap loadBitmapFromHttp(LoadRequest request) throws IOException {
 		if (Looper.myLooper() == Looper.getMainLooper()) {
-			Log.w(TAG, "Ƽ߳мش̻еͼƬ");
+			throw new RuntimeException("不能在主线程中访问网络");
 		}
 
-		if (mDiskCache == null) {
+		ShardedDiskLruCache diskCache = awaitDiskCache();
+		if (diskCache == null) {
 			return null;
 		}
 
-		Bitmap bitmap = null;
-		String key = hashKeyFromUrl(url);
-		DiskLruCache.Snapshot snapShot = mDiskCache.get(key);
-		if (snapShot != null) {
-			FileInputStream fileInputStream = (FileInputStream) snapShot
-					.getInputStream(DISK_CACHE_INDEX);
-			FileDescriptor fileDescriptor = fileInputStream.getFD();
-			bitmap = mImageResizer.decodeBitmapFromFileDescriptor(
-					fileDescriptor, reqWidth, reqHeight);
+		// 同一个url的不同尺寸是不同的请求，但只下载一次：
+		// 已经有请求在下载时等它结束，再从磁盘缓存按自己的尺寸解码
+		String key = request.key;
+		Object download = new Object();
+		Object running;
+		while ((running = beginDownload(key, download)) != null) {
+			if (!awaitDownload(key, running) || request.isCancelled()) {
+				return null;
+			}
+			Bitmap bitmap = loadBitmapFromDiskCache(request);
 			if (bitmap != null) {
-				addBitmapToMemoryCache(key, bitmap);
+				return bitmap;
 			}
+			// 那次下载失败了，自己重新下载
+		}
+		try {
+			return downloadToDiskCache(diskCache, request);
+		} finally {
+			endDownload(key, download);
 		}
-		return bitmap;
 	}
 
-	private boolean downloadUrlToStream(String urlStr, OutputStream outputStream) {
-		HttpURLConnection conn = null;
-		BufferedOutputStream out = null;
-		BufferedInputStream in = null;
-		try {
-			URL url = new URL(urlStr);
-			conn = (HttpURLConnection) url.openConnection();
-			in = new BufferedInputStream(conn.getInputStream(), IO_BUFFER_SIZE);
-			out = new BufferedOutputStream(outputStream, IO_BUFFER_SIZE);
+	// 登记key的下载，返回null表示登记成功，否则返回正在进行的下载
+	private Object beginDownload(String key, Object download) {
+		synchronized (mDownloads) {
+			Object running = mDownloads.get(key);
+			if (running == null) {
+				mDownloads.put(key, download);
+			}
+			return running;
+		}
+	}
 
-			int b;
-			while ((b = in.read()) != -1) {
-				out.write(b);
+	private void endDownload(String key, Object download) {
+		synchronized (mDownloads) {
+			if (mDownloads.get(key) == download) {
+				mDownloads.remove(key);
 			}
+			mDownloads.notifyAll();
+		}
+	}
 
+	// 等待下载结束，被中断时返回false
+	private boolean awaitDownload(String key, Object download) {
+		synchronized (mDownloads) {
+			while (mDownloads.get(key) == download) {
+				try {
+					mDownloads.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
 			return true;
+		}
+	}
+
+	private Bitmap downloadToDiskCache(ShardedDiskLruCache diskCache,
+			LoadRequest request) throws IOException {
+		String url = request.uri;
+		String key = request.key;
+		DiskLruCache.Editor editor = diskCache.edit(key);
+		if (editor == null) {
+			// 正在生成缩小图，原图已经在缓存中
+			return loadBitmapFromDiskCache(request);
+		}
+
+		// 网络数据边下载边解码，同时写入磁盘缓存，解码不需要等待commit
+		Bitmap bitmap = null;
+		boolean success = false;
+		HttpURLConnection conn = null;
+		StreamCopier.TeeInputStream in = null;
+		OutputStream out = editor.newOutputStream(DISK_CACHE_INDEX);
+		try {
+			// 原图变了，之前的缩小图都作废
+			for (int i = 1; i < DISK_CACHE_VALUE_COUNT; i++) {
+				editor.set(i, "");
+			}
+			conn = (HttpURLConnection) new URL(url).openConnection();
+			in = mStreamCopier.tee(conn.getInputStream(), out);
+			if (request.isCancelled()) {
+				// 连接建立后已经没人需要这张图，放弃下载
+				return null;
+			}
+			bitmap = mImageResizer.decodeBitmapFromStream(in, request.spec);
+			// 解码器可能没有读完整个文件，剩余部分也要写进缓存
+			mStreamCopier.drain(in);
+			success = !in.hasSourceErrors();
 		} catch (IOException e) {
 			e.printStackTrace();
-			Log.e(TAG, "ʧܣ" + e);
+			Log.e(TAG, "下载失败：" + e);
 		} finally {
 			if (conn != null) {
 				conn.disconnect();
 			}
-			try {
-				if(in!=null){
-					in.close();
-				}
-				if(out!=null){
-					out.close();
+			MyUtils.close(in);
+			MyUtils.close(out);
+			// 如果下载成功，则commit,否则，abort
+			if (success) {
+				editor.commit();
+			} else {
+				editor.abort();
+			}
+		}
+
+		if (!success) {
+			// 数据不完整，解码出来的图片也不可信
+			return null;
+		}
+		if (bitmap == null && !request.isCancelled()) {
+			// 下载的流无法重新读取时解码会放弃，完整的文件已经在缓存中，从缓存重新解码
+			return loadBitmapFromDiskCache(request);
+		}
+		if (bitmap != null) {
+			addBitmapToMemoryCache(request.urlKey, request.spec, bitmap);
+		}
+		int variant = variantIndexFor(request.spec);
+		if (variant != -1) {
+			scheduleVariant(key, variant);
+		}
+		return bitmap;
+	}
+
+	// 从磁盘缓存中加载图片
+	private Bitmap loadBitmapFromDiskCache(LoadRequest request)
+			throws IOException {
+		DiskLruCache.Snapshot snapShot = getDiskSnapshot(request.key);
+		if (snapShot == null) {
+			return null;
+		}
+		return decodeBitmapFromSnapshot(request, snapShot);
+	}
+
+	// 磁盘阶段：只打开缓存文件，不做解码
+	private DiskLruCache.Snapshot getDiskSnapshot(String key)
+			throws IOException {
+		if (Looper.myLooper() == Looper.getMainLooper()) {
+			Log.w(TAG, "不推荐在主线程中加载磁盘缓存中的图片");
+		}
+
+		ShardedDiskLruCache diskCache = awaitDiskCache();
+		if (diskCache == null) {
+			return null;
+		}
+		return diskCache.get(key);
+	}
+
+	// 解码阶段：解码磁盘缓存中的文件，结束后关闭snapshot
+	// 有合适的缩小图时解码缩小图，否则解码原图并在后台生成缩小图
+	private Bitmap decodeBitmapFromSnapshot(LoadRequest request,
+			DiskLruCache.Snapshot snapShot) throws IOException {
+		DecodeSpec spec = request.spec;
+		Bitmap bitmap = null;
+		int variant = variantIndexFor(spec);
+		boolean variantMissing = false;
+		try {
+			if (variant != -1) {
+				long length = snapShot.getLength(variant);
+				if (length > VARIANT_NOT_NEEDED.length()) {
+					bitmap = decodeValue(snapShot, variant, spec);
 				}
-			} catch (IOException e) {
-				e.printStackTrace();
+				variantMissing = length == 0;
+			}
+			if (bitmap == null) {
+				bitmap = decodeValue(snapShot, DISK_CACHE_INDEX, spec);
+			}
+		} finally {
+			snapShot.close();
+		}
+		if (bitmap != null) {
+			addBitmapToMemoryCache(request.urlKey, spec, bitmap);
+			if (variantMissing) {
+				scheduleVariant(request.key, variant);
 			}
+		}
+		return bitmap;
+	}
 
+	private Bitmap decodeValue(DiskLruCache.Snapshot snapShot, int index,
+			DecodeSpec spec) throws IOException {
+		InputStream in = snapShot.getInputStream(index);
+		if (in == null) {
+			// 打开snapshot之后这个数据被重写了
+			return null;
+		}
+		if (in instanceof FileInputStream) {
+			FileDescriptor fileDescriptor = ((FileInputStream) in).getFD();
+			return mImageResizer.decodeBitmapFromFileDescriptor(
+					fileDescriptor, spec);
 		}
+		// 存在段文件中的小图只能按流解码
+		return mImageResizer.decodeBitmapFromStream(in, spec);
+	}
 
-		return false;
+	// 能满足这个请求的最小的缩小图的数据序号，没有时返回-1
+	private static int variantIndexFor(DecodeSpec spec) {
+		if (spec.width <= 0 || spec.height <= 0) {
+			return -1;
+		}
+		// 短边不小于目标宽高中较大的一个，缩放到目标尺寸时不会放大
+		int required = Math.max(spec.width, spec.height);
+		for (int i = 0; i < VARIANT_SIZES.length; i++) {
+			if (VARIANT_SIZES[i] >= required) {
+				return i + 1;
+			}
+		}
+		return -1;
 	}
 
-	// ڴ滺мͼƬ
-	private Bitmap loadBitmapFromMemCache(String url) {
-		String key = hashKeyFromUrl(url);
-		return getBitmapFromMemCache(key);
+	// 以低优先级在解码线程中生成缩小图，同一个缩小图只提交一次
+	private void scheduleVariant(final String key, final int index) {
+		final String pendingKey = key + "_" + index;
+		synchronized (mPendingVariants) {
+			if (!mPendingVariants.add(pendingKey)) {
+				return;
+			}
+		}
+		int size = VARIANT_SIZES[index - 1];
+		DecodeSpec spec = new DecodeSpec(size, size, Bitmap.Config.ARGB_8888,
+				DecodeSpec.ScaleType.CENTER_CROP);
+		LoadRequest request = new LoadRequest(key, key, null, spec,
+				Priority.LOW, sRequestSequence.incrementAndGet());
+		DECODE_EXECUTOR.execute(new LoadTask(request) {
+
+			@Override
+			public void run() {
+				try {
+					createVariant(key, index, request.spec);
+				} catch (IOException e) {
+					e.printStackTrace();
+				} finally {
+					synchronized (mPendingVariants) {
+						mPendingVariants.remove(pendingKey);
+					}
+				}
+			}
+		});
 	}
 
-	// ͬطʽ
+	// 把原图缩小到短边为spec的尺寸，重新编码后写入节点的第index个数据
+	private void createVariant(String key, int index, DecodeSpec spec)
+			throws IOException {
+		ShardedDiskLruCache diskCache = awaitDiskCache();
+		if (diskCache == null) {
+			return;
+		}
+		DiskLruCache.Snapshot snapShot = diskCache.get(key);
+		if (snapShot == null) {
+			return;
+		}
+		Bitmap bitmap = null;
+		DiskLruCache.Editor editor = null;
+		boolean success = false;
+		try {
+			if (snapShot.getLength(index) != 0) {
+				// 已经生成过了
+				return;
+			}
+			bitmap = decodeValue(snapShot, DISK_CACHE_INDEX, spec);
+			if (bitmap == null) {
+				return;
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			bitmap.compress(bitmap.hasAlpha() ? Bitmap.CompressFormat.PNG
+					: Bitmap.CompressFormat.JPEG, VARIANT_QUALITY, bytes);
+			// 原图被替换或者正在被写时放弃，下次命中时再生成
+			editor = snapShot.edit();
+			if (editor == null) {
+				return;
+			}
+			if (bytes.size() < snapShot.getLength(DISK_CACHE_INDEX)) {
+				OutputStream out = editor.newOutputStream(index);
+				try {
+					bytes.writeTo(out);
+				} finally {
+					MyUtils.close(out);
+				}
+			} else {
+				editor.set(index, VARIANT_NOT_NEEDED);
+			}
+			success = true;
+		} finally {
+			snapShot.close();
+			mBitmapPool.put(bitmap);
+			if (editor != null) {
+				if (success) {
+					editor.commit();
+				} else {
+					editor.abort();
+				}
+			}
+		}
+	}
+
+	// 同步加载方式
 	public Bitmap loadBitmap(String uri, int reqWidth, int reqHeight) {
-		Bitmap bitmap = loadBitmapFromMemCache(uri);
+		return loadBitmap(uri, new DecodeSpec(reqWidth, reqHeight));
+	}
+
+	// 返回的Bitmap已经pin过，不知道调用者何时不再使用，永远不会被复用
+	public Bitmap loadBitmap(String uri, DecodeSpec spec) {
+		String urlKey = sCacheKeys.memoryKey(uri);
+		String memoryKey = sCacheKeys.memoryKey(uri, spec);
+		Bitmap bitmap = mMemoryCache.getAndAcquire(memoryKey);
 		if (bitmap != null) {
 			Log.d(TAG, "laodBitmapFromMemCache, url:" + uri);
+			mBitmapPool.pin(bitmap);
+			mBitmapPool.release(bitmap);
 			return bitmap;
 		}
+
+		LoadRequest request;
+		boolean isOwner = false;
+		synchronized (mInFlightRequests) {
+			request = mInFlightRequests.get(memoryKey);
+			if (request == null) {
+				request = new LoadRequest(sCacheKeys.diskKey(uri), urlKey,
+						uri, spec, Priority.HIGH,
+						sRequestSequence.incrementAndGet());
+				mInFlightRequests.put(memoryKey, request);
+				isOwner = true;
+			}
+			request.addWaiter();
+		}
+		if (isOwner) {
+			return executeRequest(request);
+		}
+		// 调用者在同步等待，排队中的请求提前执行
+		reorderRequest(request, Priority.HIGH);
+
+		// 相同的url正在加载，直接等待它的结果
 		try {
-			bitmap = loadBitmapFromDiskCache(uri, reqWidth, reqHeight);
-			if (bitmap != null) {
-				Log.d(TAG, "loadBitmapFromDiskCache, url:" + uri);
-				return bitmap;
+			return request.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	private Bitmap executeRequest(LoadRequest request) {
+		Bitmap bitmap = null;
+		try {
+			bitmap = loadBitmapInternal(request);
+		} finally {
+			finishRequest(request, bitmap);
+		}
+		return bitmap;
+	}
+
+	// 从进行中的表里移除，并把结果分发给所有挂在上面的ImageView
+	private void finishRequest(LoadRequest request, Bitmap bitmap) {
+		List<ImageView> targets;
+		synchronized (mInFlightRequests) {
+			// 被取消的请求可能已经被同一个key的新请求替换
+			if (mInFlightRequests.get(request.memoryKey) == request) {
+				mInFlightRequests.remove(request.memoryKey);
 			}
+			targets = request.complete(bitmap);
+		}
+		MyUtils.close(request.takeSnapshot());
+		if (bitmap == null) {
+			return;
+		}
+		if (request.hasWaiters()) {
+			// 交给同步调用者的结果
+			mBitmapPool.pin(bitmap);
+		}
+		for (ImageView imageView : targets) {
+			// 投递到主线程的过程中也算正在显示，避免被复用
+			mBitmapPool.acquire(bitmap);
+			LoaderResult result = new LoaderResult(imageView, request.uri,
+					bitmap);
+			mMainHandler.obtainMessage(MESSAGE_POST_RESULT, result)
+					.sendToTarget();
+		}
+		// 加载过程中持有的引用，结果已经交给所有需要它的地方
+		mBitmapPool.release(bitmap);
+	}
 
-			bitmap = loadBitmapFromHttp(uri, reqWidth, reqHeight);
-			Log.d(TAG, "laodBotmapFromHttp");
+	// 在当前线程中依次执行所有阶段
+	private Bitmap loadBitmapInternal(LoadRequest request) {
+		if (request.isCancelled()) {
+			return null;
+		}
+		Bitmap bitmap = mMemoryCache.getScaled(request.urlKey, request.spec);
+		if (bitmap != null) {
+			return bitmap;
+		}
+		try {
+			DiskLruCache.Snapshot snapShot = getDiskSnapshot(request.key);
+			if (snapShot != null) {
+				bitmap = decodeBitmapFromSnapshot(request, snapShot);
+			}
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+		if (bitmap != null) {
+			Log.d(TAG, "loadBitmapFromDiskCache, url:" + request.uri);
+			return bitmap;
+		}
+		return loadBitmapFromNetwork(request);
+	}
 
-		if (bitmap == null && !mIsDiskCacheCreated) {
-			Log.w(TAG, "ʧܣ̻ûб");
-			bitmap = downloadBitmapFromUrl(uri);
+	// 网络阶段：下载的同时解码并写入磁盘缓存
+	private Bitmap loadBitmapFromNetwork(LoadRequest request) {
+		if (request.isCancelled()) {
+			Log.d(TAG, "request cancelled before download, url:" + request.uri);
+			return null;
+		}
+		Bitmap bitmap = null;
+		try {
+			bitmap = loadBitmapFromHttp(request);
+			Log.d(TAG, "laodBotmapFromHttp, " + mStreamCopier);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		if (bitmap == null && !mIsDiskCacheCreated && !request.isCancelled()) {
+			Log.w(TAG, "连接失败，磁盘缓存没有被创建");
+			bitmap = downloadBitmapFromUrl(request);
+			if (bitmap != null) {
+				// 与其他阶段的结果一样，由finishRequest释放
+				mBitmapPool.acquire(bitmap);
+			}
 		}
 		return bitmap;
 	}
 
-	// 첽طʽ
-	public void bindBitmap(final String uri, final ImageView imageView,
-			final int reqWidth, final int reqHeight) {
-		imageView.setTag(TAG_KEY_URI, uri);
-		Bitmap bitmap = loadBitmapFromMemCache(uri);
-		if (bitmap != null) {
-			imageView.setImageBitmap(bitmap);
-			return;
+	private void scheduleDiskStage(final LoadRequest request) {
+		synchronized (mDiskCacheLock) {
+			if (mDiskCacheStarting) {
+				// 磁盘缓存还没有打开，不占用磁盘线程等待
+				mPendingDiskRequests.add(request);
+				return;
+			}
 		}
-
-		Runnable loadBitmapTask = new Runnable() {
+		request.schedule(new LoadTask(request) {
 
 			@Override
 			public void run() {
-				Bitmap bitmap = loadBitmap(uri, reqWidth, reqHeight);
+				if (request.isCancelled()) {
+					finishRequest(request, null);
+					return;
+				}
+				// 内存中有同一个url更大的图时直接缩小，不需要读磁盘
+				Bitmap bitmap = mMemoryCache.getScaled(request.urlKey,
+						request.spec);
 				if (bitmap != null) {
-					LoaderResult result = new LoaderResult(imageView, uri,
-							bitmap);
-					mMainHandler.obtainMessage(MESSAGE_POST_RESULT, result)
-							.sendToTarget();
+					finishRequest(request, bitmap);
+					return;
+				}
+				DiskLruCache.Snapshot snapShot = null;
+				try {
+					snapShot = getDiskSnapshot(request.key);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				if (snapShot != null) {
+					scheduleDecodeStage(request, snapShot);
+				} else {
+					scheduleNetworkStage(request);
+				}
+			}
+		}, DISK_EXECUTOR);
+	}
 
+	private void scheduleDecodeStage(final LoadRequest request,
+			DiskLruCache.Snapshot snapShot) {
+		request.setSnapshot(snapShot);
+		request.schedule(new LoadTask(request) {
+
+			@Override
+			public void run() {
+				DiskLruCache.Snapshot snapShot = request.takeSnapshot();
+				if (snapShot == null || request.isCancelled()) {
+					MyUtils.close(snapShot);
+					finishRequest(request, null);
+					return;
+				}
+				Bitmap bitmap = null;
+				try {
+					bitmap = decodeBitmapFromSnapshot(request, snapShot);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				if (bitmap != null) {
+					Log.d(TAG, "loadBitmapFromDiskCache, url:" + request.uri
+							+ ", " + mBitmapPool + ", " + mDiskCache);
+					finishRequest(request, bitmap);
+				} else {
+					// 缓存文件无法解码，重新从网络获取
+					scheduleNetworkStage(request);
 				}
 			}
-		};
+		}, DECODE_EXECUTOR);
+	}
+
+	private void scheduleNetworkStage(final LoadRequest request) {
+		request.schedule(new LoadTask(request) {
 
-		// ִ߳
-		THREAD_POOL_EXECUTOR.execute(loadBitmapTask);
+			@Override
+			public void run() {
+				finishRequest(request, loadBitmapFromNetwork(request));
+			}
+		}, NETWORK_EXECUTOR);
+	}
+
+	// 异步加载方式
+	public void bindBitmap(String uri, ImageView imageView, int reqWidth,
+			int reqHeight) {
+		bindBitmap(uri, imageView, reqWidth, reqHeight, Priority.NORMAL);
+	}
+
+	public void bindBitmap(String uri, ImageView imageView, int reqWidth,
+			int reqHeight, Priority priority) {
+		bindBitmap(uri, imageView, new DecodeSpec(reqWidth, reqHeight),
+				priority);
+	}
+
+	public void bindBitmap(String uri, ImageView imageView, DecodeSpec spec,
+			Priority priority) {
+		imageView.setTag(TAG_KEY_URI, uri);
+		// 主线程上每次绑定都要计算，内存命中时只查表和拼接，不计算磁盘key
+		String urlKey = sCacheKeys.memoryKey(uri);
+		String memoryKey = sCacheKeys.memoryKey(uri, spec);
+		LoadRequest previous = (LoadRequest) imageView.getTag(TAG_KEY_REQUEST);
+		if (previous != null && previous.memoryKey.equals(memoryKey)
+				&& isInFlight(previous)) {
+			// 同一张图已经在为这个ImageView加载
+			return;
+		}
+		// ImageView被复用，之前的请求不再需要
+		cancelRequest(imageView);
+
+		// 查找和acquire是原子的，设置给ImageView之前不会被淘汰进池中复用
+		Bitmap bitmap = mMemoryCache.getAndAcquire(memoryKey);
+		if (bitmap != null) {
+			setImageBitmap(imageView, bitmap);
+			return;
+		}
+
+		final LoadRequest request;
+		LoadRequest inFlight;
+		synchronized (mInFlightRequests) {
+			inFlight = mInFlightRequests.get(memoryKey);
+			if (inFlight != null) {
+				// 已经在加载，挂到同一个请求上即可
+				inFlight.addTarget(imageView);
+				request = null;
+			} else {
+				request = new LoadRequest(sCacheKeys.diskKey(uri), urlKey,
+						uri, spec, priority, sRequestSequence.incrementAndGet());
+				request.addTarget(imageView);
+				mInFlightRequests.put(memoryKey, request);
+			}
+		}
+		if (inFlight != null) {
+			imageView.setTag(TAG_KEY_REQUEST, inFlight);
+			// 这张图又被绑定了一次，作为最新的请求排到前面，优先级只升不降
+			if (priority.compareTo(inFlight.getPriority()) < 0) {
+				priority = inFlight.getPriority();
+			}
+			reorderRequest(inFlight, priority);
+			return;
+		}
+		imageView.setTag(TAG_KEY_REQUEST, request);
+
+		// 从磁盘阶段开始执行，之后交给解码或网络阶段
+		scheduleDiskStage(request);
+	}
+
+	// 修改ImageView当前请求的优先级
+	public void setPriority(ImageView imageView, Priority priority) {
+		LoadRequest request = (LoadRequest) imageView.getTag(TAG_KEY_REQUEST);
+		if (request != null) {
+			reorderRequest(request, priority);
+		}
+	}
+
+	// 调整请求的优先级并作为最新的请求重新排队，已经开始执行的请求不受影响
+	private void reorderRequest(LoadRequest request, Priority priority) {
+		request.reorder(priority, sRequestSequence.incrementAndGet());
+	}
+
+	private boolean isInFlight(LoadRequest request) {
+		synchronized (mInFlightRequests) {
+			return mInFlightRequests.get(request.memoryKey) == request;
+		}
+	}
+
+	// ImageView不再显示由ImageLoader设置的图片时调用，图片在离开内存缓存后可以被复用
+	public void releaseBitmap(ImageView imageView) {
+		cancelRequest(imageView);
+		// 已经投递到主线程的结果不再设置给它
+		imageView.setTag(TAG_KEY_URI, null);
+		Bitmap bitmap = (Bitmap) imageView.getTag(TAG_KEY_BITMAP);
+		if (bitmap != null) {
+			imageView.setTag(TAG_KEY_BITMAP, null);
+			mBitmapPool.release(bitmap);
+		}
+	}
+
+	// 调用前bitmap已经acquire过，替换掉的旧图片release
+	private void setImageBitmap(ImageView imageView, Bitmap bitmap) {
+		Bitmap previous = (Bitmap) imageView.getTag(TAG_KEY_BITMAP);
+		imageView.setImageBitmap(bitmap);
+		imageView.setTag(TAG_KEY_BITMAP, bitmap);
+		if (previous != null) {
+			mBitmapPool.release(previous);
+		}
+	}
+
+	// 取消ImageView当前绑定的请求，如果没有其他ImageView需要这个结果，请求会被丢弃
+	public void cancelRequest(ImageView imageView) {
+		LoadRequest request = (LoadRequest) imageView.getTag(TAG_KEY_REQUEST);
+		if (request == null) {
+			return;
+		}
+		imageView.setTag(TAG_KEY_REQUEST, null);
+		synchronized (mInFlightRequests) {
+			if (!request.removeTarget(imageView)) {
+				return;
+			}
+			request.cancel();
+			if (mInFlightRequests.get(request.memoryKey) == request) {
+				mInFlightRequests.remove(request.memoryKey);
+			}
+		}
+		dropQueuedTask(request);
 	}
 
-	// мbitmap
-	private Bitmap downloadBitmapFromUrl(String urlStr) {
+	// 还在队列中的任务直接移除，正在执行的任务会在下一个阶段前检查取消标志
+	private void dropQueuedTask(LoadRequest request) {
+		if (request.removeQueuedTask()) {
+			finishRequest(request, null);
+		}
+	}
+
+	// 以低优先级预加载到磁盘和内存缓存，已经在内存缓存中或者内存紧张时返回null，返回的请求用于取消
+	LoadRequest prefetch(String uri, DecodeSpec spec) {
+		restoreCapacityIfCalm();
+		if (mCapacityRestoreAt != 0) {
+			// 内存紧张，暂停预加载
+			return null;
+		}
+		String urlKey = sCacheKeys.memoryKey(uri);
+		String memoryKey = sCacheKeys.memoryKey(uri, spec);
+		if (mMemoryCache.get(memoryKey) != null) {
+			return null;
+		}
+		LoadRequest request;
+		boolean isNew = false;
+		synchronized (mInFlightRequests) {
+			request = mInFlightRequests.get(memoryKey);
+			if (request == null) {
+				request = new LoadRequest(sCacheKeys.diskKey(uri), urlKey,
+						uri, spec, Priority.LOW,
+						sRequestSequence.incrementAndGet());
+				mInFlightRequests.put(memoryKey, request);
+				isNew = true;
+			}
+			request.addPrefetcher();
+		}
+		if (isNew) {
+			scheduleDiskStage(request);
+		}
+		return request;
+	}
+
+	// 预加载的图片已经不在预加载范围内
+	void cancelPrefetch(LoadRequest request) {
+		synchronized (mInFlightRequests) {
+			if (!request.removePrefetcher()) {
+				return;
+			}
+			request.cancel();
+			if (mInFlightRequests.get(request.memoryKey) == request) {
+				mInFlightRequests.remove(request.memoryKey);
+			}
+		}
+		dropQueuedTask(request);
+	}
+
+	// 从网络中加载bitmap，没有磁盘缓存时不需要保留数据，边下载边按请求的尺寸解码
+	private Bitmap downloadBitmapFromUrl(LoadRequest request) {
 		Bitmap bitmap = null;
 		HttpURLConnection conn = null;
-		BufferedInputStream in = null;
+		InputStream in = null;
 		try {
-			URL url = new URL(urlStr);
+			URL url = new URL(request.uri);
 			conn = (HttpURLConnection) url.openConnection();
-			in = new BufferedInputStream(conn.getInputStream(), IO_BUFFER_SIZE);
-			bitmap = BitmapFactory.decodeStream(in);
+			// 与写磁盘缓存的下载一样计入吞吐量统计
+			in = mStreamCopier.meter(conn.getInputStream());
+			bitmap = mImageResizer.decodeBitmapFromStream(in, request.spec);
 		} catch (IOException e) {
 			e.printStackTrace();
-			Log.e(TAG, "ʧܡe:" + e);
+			Log.e(TAG, "下载失败。e:" + e);
 		} finally {
 			if (conn != null) {
 				conn.disconnect();
 			}
-			try {
-				if(in!=null){
-					in.close();
-				}
-				
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+			MyUtils.close(in);
 		}
 
 		return bitmap;
 	}
 
-	// ʹMD5㷨URLתΪMD5ַkey
-	private String hashKeyFromUrl(String url) {
-		String cacheKey;
-		try {
-			MessageDigest mDigest = MessageDigest.getInstance("MD5");
-			mDigest.update(url.getBytes());
-			cacheKey = bytesToHexString(mDigest.digest());
-		} catch (NoSuchAlgorithmException e) {
-			cacheKey = String.valueOf(url.hashCode());
-			e.printStackTrace();
-		}
-		return cacheKey;
-	}
-
-	private String bytesToHexString(byte[] bytes) {
-		StringBuilder sb = new StringBuilder();
-		for (int i = 0; i < bytes.length; i++) {
-			String hex = Integer.toHexString(0xFF & bytes[i]);
-			if (hex.length() == 1) {
-				sb.append('0');
-			}
-			sb.append(hex);
-		}
-		return sb.toString();
-	}
-
-	// ȡĿ¼¿õĿռ
+	// 获取缓存目录下可用的空间
 	@SuppressLint("NewApi")
 	private long getUsableSpace(File diskCacheDir) {
-		// android 2.3ϰ汾ģֱӻȡÿռ
+		// 如果是android 2.3及以上版本的，直接获取可用空间
 		if (Build.VERSION.SDK_INT >= VERSION_CODES.GINGERBREAD) {
 			return diskCacheDir.getUsableSpace();
 		}
@@ -1,20 +1,39 @@
 package com.example.imageloader;
 
+import java.io.BufferedInputStream;
 import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
 
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapFactory.Options;
+import android.os.Build;
+import android.os.Build.VERSION_CODES;
 import android.util.Log;
 
 public class ImageResizer {
 	private final static String TAG = "ImageResizer";
+	private final static int IO_BUFFER_SIZE = 16 * 1024;
+	//读取图片尺寸时最多缓存的数据量，超过后无法reset
+	private final static int MARK_LIMIT = 5 * 1024 * 1024;
+	//真正解码时保留的数据量，复用Bitmap失败时不超过它的小图还可以重新解码，大图不再整张留在内存中
+	private final static int RETRY_MARK_LIMIT = 64 * 1024;
+	private final static float DEFAULT_EXACT_SIZE_TOLERANCE = 0.1f;
+	
+	private BitmapPool mBitmapPool;
+	private float mExactSizeTolerance = DEFAULT_EXACT_SIZE_TOLERANCE;
 	
 	public ImageResizer() {
 	}
 	
-	//ѹԴеͼƬ
+	//解码时从pool中复用Bitmap
+	public ImageResizer(BitmapPool bitmapPool) {
+		mBitmapPool = bitmapPool;
+	}
+	
+	//压缩资源中的图片
 	public  Bitmap decodeBitmapFromResource(Resources res, int resId, int reqWidth, int reqHeight){
 		BitmapFactory.Options options = new BitmapFactory.Options();
 		options.inJustDecodeBounds = true;
@@ -27,14 +46,153 @@ public class ImageResizer {
 	}
 	
 	public Bitmap decodeBitmapFromFileDescriptor(FileDescriptor fd, int reqWidth, int reqHeight){
+		return decodeBitmapFromFileDescriptor(fd, new DecodeSpec(reqWidth, reqHeight));
+	}
+	
+	public Bitmap decodeBitmapFromFileDescriptor(FileDescriptor fd, DecodeSpec spec){
 		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inPreferredConfig = spec.config;
 		options.inJustDecodeBounds = true ;
 		BitmapFactory.decodeFileDescriptor(fd, null, options);
 		
-		options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+		applyConfig(options, spec);
+		applyScaling(options, spec);
 		
 		options.inJustDecodeBounds = false;
-		return BitmapFactory.decodeFileDescriptor(fd, null, options);
+		addInBitmapOptions(options);
+		try {
+			return checkDecodeResult(BitmapFactory.decodeFileDescriptor(fd, null, options), options);
+		} catch (IllegalArgumentException e) {
+			//复用的Bitmap不合适，不复用重新解码
+			if (!dropInBitmap(options)) {
+				throw e;
+			}
+			return BitmapFactory.decodeFileDescriptor(fd, null, options);
+		}
+	}
+
+	// 从流中解码，先mark读取尺寸，再reset后真正解码，流只需要读一遍。
+	// 复用Bitmap失败而流已经无法reset时返回null，调用者可以重新打开数据再解码
+	public Bitmap decodeBitmapFromStream(InputStream in, int reqWidth, int reqHeight) throws IOException{
+		return decodeBitmapFromStream(in, new DecodeSpec(reqWidth, reqHeight));
+	}
+	
+	public Bitmap decodeBitmapFromStream(InputStream in, DecodeSpec spec) throws IOException{
+		MarkLimitInputStream bufferedIn = new MarkLimitInputStream(in);
+		bufferedIn.mark(MARK_LIMIT);
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inPreferredConfig = spec.config;
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeStream(bufferedIn, null, options);
+		bufferedIn.reset();
+		//尺寸已经读到，换成小的mark，读过的数据超出后就可以丢弃
+		bufferedIn.setMinMarkLimit(RETRY_MARK_LIMIT);
+		bufferedIn.mark(RETRY_MARK_LIMIT);
+		
+		applyConfig(options, spec);
+		applyScaling(options, spec);
+		
+		options.inJustDecodeBounds = false;
+		addInBitmapOptions(options);
+		try {
+			return checkDecodeResult(BitmapFactory.decodeStream(bufferedIn, null, options), options);
+		} catch (IllegalArgumentException e) {
+			//复用的Bitmap不合适，不复用重新解码
+			if (!dropInBitmap(options)) {
+				throw e;
+			}
+			try {
+				bufferedIn.reset();
+			} catch (IOException resetFailed) {
+				//解码读过的数据超出了mark的范围
+				Log.w(TAG, "inBitmap不合适，数据已经无法重新读取：" + resetFailed);
+				return null;
+			}
+			return BitmapFactory.decodeStream(bufferedIn, null, options);
+		}
+	}
+
+	//精确尺寸模式下，采样后的尺寸与目标尺寸相差不超过这个比例时不再缩放，缩放会多花一些解码时间
+	public void setExactSizeTolerance(float tolerance) {
+		mExactSizeTolerance = tolerance;
+	}
+
+	//根据读取尺寸时得到的格式选择config，pool也按这个config查找可复用的Bitmap
+	private static void applyConfig(Options options, DecodeSpec spec) {
+		options.inPreferredConfig = spec.configFor(options.outMimeType);
+		if (options.inPreferredConfig == Bitmap.Config.RGB_565) {
+			//抖动可以减轻渐变处的色带
+			options.inDither = true;
+		}
+	}
+
+	//SAMPLE模式只按2的幂采样，其他模式在采样之后再通过inDensity/inTargetDensity缩放到精确尺寸
+	private void applyScaling(Options options, DecodeSpec spec) {
+		if (spec.scaleType == DecodeSpec.ScaleType.SAMPLE
+				|| spec.width <= 0 || spec.height <= 0
+				|| options.outWidth <= 0 || options.outHeight <= 0) {
+			options.inSampleSize = calculateInSampleSize(options, spec.width, spec.height);
+			return;
+		}
+
+		float scale = spec.scaleFor(options.outWidth, options.outHeight);
+		if (scale >= 1f) {
+			//不放大
+			options.inSampleSize = 1;
+			return;
+		}
+		int targetWidth = Math.round(options.outWidth * scale);
+		int inSampleSize = 1;
+		while (options.outWidth / (inSampleSize * 2) >= targetWidth) {
+			inSampleSize *= 2;
+		}
+		options.inSampleSize = inSampleSize;
+
+		int sampledWidth = options.outWidth / inSampleSize;
+		if (sampledWidth > targetWidth * (1 + mExactSizeTolerance)) {
+			options.inScaled = true;
+			options.inDensity = sampledWidth;
+			options.inTargetDensity = targetWidth;
+		}
+		Log.d(TAG, "inSampleSize:" + inSampleSize + ", targetWidth:" + targetWidth);
+	}
+
+	//根据解码后的尺寸从pool中找一个可以复用的Bitmap，KitKat之前只支持不缩放的情况
+	private void addInBitmapOptions(Options options) {
+		if (mBitmapPool == null) {
+			return;
+		}
+		options.inMutable = true;
+		boolean scaled = options.inScaled && options.inDensity > 0;
+		if (Build.VERSION.SDK_INT < VERSION_CODES.KITKAT
+				&& (options.inSampleSize != 1 || scaled)) {
+			return;
+		}
+		int width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+		int height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+		if (scaled) {
+			float density = (float) options.inTargetDensity / options.inDensity;
+			width = (int) (width * density + 0.5f);
+			height = (int) (height * density + 0.5f);
+		}
+		options.inBitmap = mBitmapPool.get(width, height, options.inPreferredConfig);
+	}
+
+	//解码失败时没有用上的Bitmap放回pool
+	private Bitmap checkDecodeResult(Bitmap bitmap, Options options) {
+		if (bitmap == null) {
+			dropInBitmap(options);
+		}
+		return bitmap;
+	}
+
+	private boolean dropInBitmap(Options options) {
+		if (options.inBitmap == null) {
+			return false;
+		}
+		mBitmapPool.put(options.inBitmap);
+		options.inBitmap = null;
+		return true;
 	}
 
 	private static int calculateInSampleSize(Options options, int reqWidth,
@@ -42,6 +200,10 @@ public class ImageResizer {
 		final int height = options.outHeight;
 		final int width = options.outWidth;
 		int inSampleSize = 1;
+		if(reqWidth<=0||reqHeight<=0){
+			//没有指定尺寸时不压缩
+			return inSampleSize;
+		}
 		if(height> reqHeight||width>reqWidth){
 			final int halfHeight = height/2;
 			final int halfWidth = width/2;
@@ -52,4 +214,22 @@ public class ImageResizer {
 		Log.d(TAG, "inSampleSize:"+inSampleSize);
 		return inSampleSize;
 	}
+
+	//BitmapFactory内部会用较小的limit重新mark，这里保证limit不会小于当前阶段需要的值
+	private static class MarkLimitInputStream extends BufferedInputStream {
+		private int mMinMarkLimit = MARK_LIMIT;
+
+		public MarkLimitInputStream(InputStream in) {
+			super(in, IO_BUFFER_SIZE);
+		}
+
+		public synchronized void setMinMarkLimit(int minMarkLimit) {
+			mMinMarkLimit = minMarkLimit;
+		}
+
+		@Override
+		public synchronized void mark(int readlimit) {
+			super.mark(Math.max(readlimit, mMinMarkLimit));
+		}
+	}
 }
@@ -0,0 +1,164 @@
+package com.example.imageloader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import libcore.io.DiskLruCache;
+
+import android.graphics.Bitmap;
+import android.widget.ImageView;
+
+// 一次正在进行中的加载，同一个url和解码参数的后续请求挂在它上面共享结果
+final class LoadRequest {
+	// 磁盘缓存的key
+	final String key;
+	// 内存缓存中url的key，不一定与磁盘缓存的key相同
+	final String urlKey;
+	// 内存缓存的key，进行中的表也按它索引，不同尺寸的请求不会合并
+	final String memoryKey;
+	final String uri;
+	final DecodeSpec spec;
+
+	private final List<ImageView> mTargets = new ArrayList<ImageView>();
+	// 同步等待结果的调用者数量，有等待者的请求不能被取消
+	private int mWaiters = 0;
+	// 预加载的引用数量
+	private int mPrefetchers = 0;
+	private Bitmap mBitmap;
+	private boolean mDone = false;
+	private volatile boolean mCancelled = false;
+	// 当前阶段的任务和它所在的线程池，还在队列中时取消需要把它从队列中移除
+	private LoadTask mTask;
+	private ThreadPoolExecutor mExecutor;
+	// 磁盘命中后等待解码的snapshot，请求结束时必须关闭
+	private DiskLruCache.Snapshot mSnapshot;
+	// 排队时的优先级和序号，只能在任务不在队列中时修改，否则会破坏队列的顺序
+	private volatile Priority mPriority;
+	private volatile long mSequence;
+
+	LoadRequest(String key, String urlKey, String uri, DecodeSpec spec,
+			Priority priority, long sequence) {
+		this.key = key;
+		this.urlKey = urlKey;
+		this.memoryKey = spec.memoryKey(urlKey);
+		this.uri = uri;
+		this.spec = spec;
+		mPriority = priority;
+		mSequence = sequence;
+	}
+
+	// 加载已经结束时返回false，调用者需要自己处理
+	synchronized boolean addTarget(ImageView imageView) {
+		if (mDone) {
+			return false;
+		}
+		if (!mTargets.contains(imageView)) {
+			mTargets.add(imageView);
+		}
+		return true;
+	}
+
+	// 移除target，如果已经没有人需要这个结果则返回true
+	synchronized boolean removeTarget(ImageView imageView) {
+		mTargets.remove(imageView);
+		return isUnused();
+	}
+
+	synchronized void addWaiter() {
+		mWaiters++;
+	}
+
+	// 是否有同步等待结果的调用者
+	synchronized boolean hasWaiters() {
+		return mWaiters > 0;
+	}
+
+	synchronized void addPrefetcher() {
+		mPrefetchers++;
+	}
+
+	// 移除一个预加载引用，如果已经没有人需要这个结果则返回true
+	synchronized boolean removePrefetcher() {
+		if (mPrefetchers > 0) {
+			mPrefetchers--;
+		}
+		return isUnused();
+	}
+
+	private boolean isUnused() {
+		return !mDone && mTargets.isEmpty() && mWaiters == 0
+				&& mPrefetchers == 0;
+	}
+
+	void cancel() {
+		mCancelled = true;
+	}
+
+	boolean isCancelled() {
+		return mCancelled;
+	}
+
+	Priority getPriority() {
+		return mPriority;
+	}
+
+	long getSequence() {
+		return mSequence;
+	}
+
+	// 把下一个阶段的任务提交到对应的线程池
+	synchronized void schedule(LoadTask task, ThreadPoolExecutor executor) {
+		mTask = task;
+		mExecutor = executor;
+		executor.execute(task);
+	}
+
+	// 任务还在队列中时把它移除，返回true表示任务不会再执行
+	synchronized boolean removeQueuedTask() {
+		if (mTask != null && mExecutor.remove(mTask)) {
+			mTask = null;
+			return true;
+		}
+		return false;
+	}
+
+	// 修改优先级并作为最新的请求重新排队，已经开始执行的任务不受影响
+	synchronized void reorder(Priority priority, long sequence) {
+		boolean queued = mTask != null && mExecutor.remove(mTask);
+		mPriority = priority;
+		mSequence = sequence;
+		if (queued) {
+			mExecutor.execute(mTask);
+		}
+	}
+
+	synchronized void setSnapshot(DiskLruCache.Snapshot snapshot) {
+		mSnapshot = snapshot;
+	}
+
+	synchronized DiskLruCache.Snapshot takeSnapshot() {
+		DiskLruCache.Snapshot snapshot = mSnapshot;
+		mSnapshot = null;
+		return snapshot;
+	}
+
+	// 记录结果并唤醒等待者，返回需要回调的ImageView
+	synchronized List<ImageView> complete(Bitmap bitmap) {
+		mBitmap = bitmap;
+		mDone = true;
+		notifyAll();
+		List<ImageView> targets = new ArrayList<ImageView>(mTargets);
+		mTargets.clear();
+		mTask = null;
+		return targets;
+	}
+
+	// 同步等待加载结果
+	synchronized Bitmap await() throws InterruptedException {
+		while (!mDone) {
+			wait();
+		}
+		return mBitmap;
+	}
+}
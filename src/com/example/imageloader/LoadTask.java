@@ -0,0 +1,22 @@
+package com.example.imageloader;
+
+// 线程池中的加载任务，优先级高的先执行，同优先级时后提交的先执行
+abstract class LoadTask implements Runnable, Comparable<LoadTask> {
+	final LoadRequest request;
+
+	LoadTask(LoadRequest request) {
+		this.request = request;
+	}
+
+	@Override
+	public int compareTo(LoadTask other) {
+		int diff = other.request.getPriority().ordinal()
+				- request.getPriority().ordinal();
+		if (diff != 0) {
+			return diff;
+		}
+		long sequence = request.getSequence();
+		long otherSequence = other.request.getSequence();
+		return sequence > otherSequence ? -1 : (sequence < otherSequence ? 1 : 0);
+	}
+}
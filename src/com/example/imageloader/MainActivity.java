@@ -8,6 +8,7 @@ import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
+import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import android.os.Bundle;
 import android.view.LayoutInflater;
@@ -24,11 +25,15 @@ public class MainActivity extends Activity implements OnScrollListener {
 
     private List<String> mUrList = new ArrayList<String>();
     ImageLoader mImageLoader;
+    // requests made by this screen, cancelled when it is destroyed
+    private RequestScope mImageScope;
+    private ScrollPrefetcher mPrefetcher;
     private GridView mImageGridView;
     private BaseAdapter mImageAdapter;
 
     private boolean mIsGridViewIdle = true;
     private int mImageWidth = 0;
+    private DecodeSpec mDecodeSpec;
     private boolean mIsWifi = false;
     private boolean mCanGetBitmapFromNetWork = false;
 
@@ -39,6 +44,24 @@ public class MainActivity extends Activity implements OnScrollListener {
         initData();
         initView();
         mImageLoader = ImageLoader.build(this);
+        mImageScope = mImageLoader.newScope();
+        // warm the caches for the items about to scroll into view
+        mPrefetcher = new ScrollPrefetcher(mImageLoader,
+                new ScrollPrefetcher.UrlProvider() {
+                    @Override
+                    public String getUrl(int position) {
+                        return mUrList.get(position);
+                    }
+                }, mDecodeSpec, 12);
+        mPrefetcher.setEnabled(mCanGetBitmapFromNetWork);
+    }
+
+    @Override
+    protected void onDestroy() {
+        // the loader is shared by the whole process and outlives this screen
+        mPrefetcher.cancelAll();
+        mImageScope.close();
+        super.onDestroy();
     }
 
     private void initData() {
@@ -85,6 +108,11 @@ public class MainActivity extends Activity implements OnScrollListener {
         int screenWidth = MyUtils.getScreenMetrics(this).widthPixels;
         int space = (int)MyUtils.dp2px(this, 20f);
         mImageWidth = (screenWidth - space) / 3;
+        // cells are square and centerCrop, decode just enough to cover them;
+        // the photos are almost all JPEGs, which can use half the memory
+        mDecodeSpec = new DecodeSpec(mImageWidth, mImageWidth,
+                Bitmap.Config.ARGB_8888, DecodeSpec.ScaleType.CENTER_CROP,
+                DecodeSpec.ConfigPolicy.RGB_565_IF_OPAQUE);
         mIsWifi = MyUtils.isWifi(this);
         if (mIsWifi) {
             mCanGetBitmapFromNetWork = true;
@@ -99,16 +127,17 @@ public class MainActivity extends Activity implements OnScrollListener {
 
         if (!mIsWifi) {
             AlertDialog.Builder builder = new AlertDialog.Builder(this);
-            builder.setMessage("ʹûش5MBͼƬȷҪ");
-            builder.setTitle("ע");
-            builder.setPositiveButton("", new OnClickListener() {
+            builder.setMessage("初次使用会从网络下载大概5MB的图片，确认要下载吗？");
+            builder.setTitle("注意");
+            builder.setPositiveButton("是", new OnClickListener() {
                 @Override
                 public void onClick(DialogInterface dialog, int which) {
                     mCanGetBitmapFromNetWork = true;
+                    mPrefetcher.setEnabled(true);
                     mImageAdapter.notifyDataSetChanged();
                 }
             });
-            builder.setNegativeButton("", null);
+            builder.setNegativeButton("否", null);
             builder.show();
         }
     }
@@ -153,10 +182,13 @@ public class MainActivity extends Activity implements OnScrollListener {
             final String uri = getItem(position);
             if (!uri.equals(tag)) {
                 imageView.setImageDrawable(mDefaultBitmapDrawable);
+                // the view was recycled for another item: drop its old load
+                // and let the loader reuse the bitmap it no longer shows
+                mImageScope.releaseBitmap(imageView);
             }
             if (mIsGridViewIdle && mCanGetBitmapFromNetWork) {
                 imageView.setTag(uri);
-                mImageLoader.bindBitmap(uri, imageView, mImageWidth, mImageWidth);
+                mImageScope.bindBitmap(uri, imageView, mDecodeSpec, Priority.NORMAL);
             }
             return convertView;
         }
@@ -175,12 +207,13 @@ public class MainActivity extends Activity implements OnScrollListener {
         } else {
             mIsGridViewIdle = false;
         }
+        mPrefetcher.onScrollStateChanged(view, scrollState);
     }
 
     @Override
     public void onScroll(AbsListView view, int firstVisibleItem,
             int visibleItemCount, int totalItemCount) {
-        // ignored
-        
+        mPrefetcher.onScroll(view, firstVisibleItem, visibleItemCount,
+                totalItemCount);
     }
 }
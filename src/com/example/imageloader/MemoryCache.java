@@ -0,0 +1,164 @@
+package com.example.imageloader;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.graphics.Bitmap;
+
+// 内存缓存，key包含解码参数，同一个url的不同尺寸分别缓存
+// 主线程绑定图片时的查找不加锁，见ClockCache
+public class MemoryCache {
+	private final ClockCache<String, Bitmap> mCache;
+	private final BitmapPool mBitmapPool;
+	private final long mMaxSize;
+	// url的key -> 这个url已经缓存的内存key
+	private final HashMap<String, Set<String>> mMemoryKeys = new HashMap<String, Set<String>>();
+
+	public MemoryCache(long maxSizeInBytes, final BitmapPool bitmapPool) {
+		mBitmapPool = bitmapPool;
+		mMaxSize = maxSizeInBytes;
+		mCache = new ClockCache<String, Bitmap>(maxSizeInBytes) {
+			// 计算Bitmap占用的内存字节数，复用的Bitmap可能比图片本身大，按分配的大小计算
+			@Override
+			protected int sizeOf(String key, Bitmap bitmap) {
+				return BitmapPool.byteCountOf(bitmap);
+			}
+
+			@Override
+			protected void entryRemoved(boolean evicted, String key,
+					Bitmap oldValue, Bitmap newValue) {
+				if (newValue == null) {
+					unindex(key);
+					// 离开缓存的Bitmap在没有ImageView显示后可以被复用
+					bitmapPool.onCacheRemoved(oldValue);
+				}
+			}
+		};
+	}
+
+	public Bitmap get(String urlKey, DecodeSpec spec) {
+		return get(spec.memoryKey(urlKey));
+	}
+
+	// 调用者已经拼好内存key时使用，不用再拼一次
+	public Bitmap get(String memoryKey) {
+		return mCache.get(memoryKey);
+	}
+
+	// 查找并acquire，返回的Bitmap在release之前不会被复用。
+	// 淘汰时先移出缓存再在池的锁内通知池，所以在池的锁内确认它仍在缓存中，
+	// 池就一定还没有收到它，acquire之后再被淘汰也只会等到release后才进入池
+	public Bitmap getAndAcquire(String memoryKey) {
+		Bitmap bitmap = mCache.get(memoryKey);
+		if (bitmap == null) {
+			return null;
+		}
+		synchronized (mBitmapPool) {
+			if (mCache.get(memoryKey) != bitmap) {
+				return null;
+			}
+			mBitmapPool.acquire(bitmap);
+		}
+		return bitmap;
+	}
+
+	public void put(String urlKey, DecodeSpec spec, Bitmap bitmap) {
+		String memoryKey = spec.memoryKey(urlKey);
+		if (mCache.get(memoryKey) != null) {
+			return;
+		}
+		synchronized (mMemoryKeys) {
+			Set<String> keys = mMemoryKeys.get(urlKey);
+			if (keys == null) {
+				keys = new HashSet<String>();
+				mMemoryKeys.put(urlKey, keys);
+			}
+			keys.add(memoryKey);
+		}
+		mCache.put(memoryKey, bitmap);
+	}
+
+	// 没有完全匹配时，把同一个url已缓存的更大的图缩小得到，避免重新读磁盘
+	// 返回的Bitmap已经acquire过，使用完后需要release
+	public Bitmap getScaled(String urlKey, DecodeSpec spec) {
+		if (spec.width <= 0 || spec.height <= 0) {
+			return null;
+		}
+		List<String> candidates;
+		synchronized (mMemoryKeys) {
+			Set<String> keys = mMemoryKeys.get(urlKey);
+			if (keys == null) {
+				return null;
+			}
+			candidates = new ArrayList<String>(keys);
+		}
+
+		Bitmap source = null;
+		String sourceKey = null;
+		for (String memoryKey : candidates) {
+			Bitmap bitmap = mCache.get(memoryKey);
+			if (bitmap == null || !spec.accepts(bitmap.getConfig())
+					|| spec.scaleFor(bitmap.getWidth(), bitmap.getHeight()) > 1f) {
+				continue;
+			}
+			if (source == null || bitmap.getWidth() < source.getWidth()) {
+				source = bitmap;
+				sourceKey = memoryKey;
+			}
+		}
+		if (source == null) {
+			return null;
+		}
+		// 缩小的过程中源图不能被复用，它在选出后可能已经被淘汰或替换
+		Bitmap acquired = getAndAcquire(sourceKey);
+		if (acquired != source) {
+			if (acquired != null) {
+				mBitmapPool.release(acquired);
+			}
+			return null;
+		}
+
+		// 按解码时同样的规则计算缩小后的尺寸
+		float scale = spec.scaleFor(source.getWidth(), source.getHeight());
+		if (scale >= 1f) {
+			// 同一个Bitmap不能用两个key缓存，否则移除一个key后它可能被复用
+			return source;
+		}
+		Bitmap scaled;
+		try {
+			scaled = Bitmap.createScaledBitmap(source,
+					Math.round(source.getWidth() * scale),
+					Math.round(source.getHeight() * scale), true);
+		} finally {
+			mBitmapPool.release(source);
+		}
+		mBitmapPool.acquire(scaled);
+		put(urlKey, spec, scaled);
+		return scaled;
+	}
+
+	// 把容量调整为最大容量的fraction倍，超出的图片立即移出
+	public void setCapacityFraction(float fraction) {
+		mCache.resize(Math.max(1, (long) (mMaxSize * fraction)));
+	}
+
+	public long sizeInBytes() {
+		return mCache.size();
+	}
+
+	private void unindex(String memoryKey) {
+		String urlKey = DecodeSpec.urlKeyOf(memoryKey);
+		synchronized (mMemoryKeys) {
+			Set<String> keys = mMemoryKeys.get(urlKey);
+			if (keys != null) {
+				keys.remove(memoryKey);
+				if (keys.isEmpty()) {
+					mMemoryKeys.remove(urlKey);
+				}
+			}
+		}
+	}
+}
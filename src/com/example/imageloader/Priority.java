@@ -0,0 +1,6 @@
+package com.example.imageloader;
+
+// 加载优先级，预加载使用LOW，可见的ImageView使用NORMAL或HIGH
+public enum Priority {
+	LOW, NORMAL, HIGH
+}
@@ -0,0 +1,61 @@
+package com.example.imageloader;
+
+import java.util.ArrayList;
+import java.util.WeakHashMap;
+
+import android.widget.ImageView;
+
+// 一个页面发起的加载，缓存和线程池都属于共享的ImageLoader，这里只记录绑定过的ImageView，
+// 页面销毁时调用close()，取消还没完成的加载，显示过的图片交还给Bitmap池。只能在主线程中使用
+public class RequestScope {
+	private final ImageLoader mImageLoader;
+	// 通过这个scope绑定过的ImageView，使用弱引用，被列表丢弃的ImageView不会被留住
+	private final WeakHashMap<ImageView, Boolean> mImageViews = new WeakHashMap<ImageView, Boolean>();
+	private boolean mClosed = false;
+
+	RequestScope(ImageLoader imageLoader) {
+		mImageLoader = imageLoader;
+	}
+
+	public ImageLoader getImageLoader() {
+		return mImageLoader;
+	}
+
+	public void bindBitmap(String uri, ImageView imageView, int reqWidth,
+			int reqHeight) {
+		bindBitmap(uri, imageView, new DecodeSpec(reqWidth, reqHeight),
+				Priority.NORMAL);
+	}
+
+	// 关闭后的绑定直接忽略，页面销毁后不再发起新的加载
+	public void bindBitmap(String uri, ImageView imageView, DecodeSpec spec,
+			Priority priority) {
+		if (mClosed) {
+			return;
+		}
+		mImageViews.put(imageView, Boolean.TRUE);
+		mImageLoader.bindBitmap(uri, imageView, spec, priority);
+	}
+
+	public void setPriority(ImageView imageView, Priority priority) {
+		mImageLoader.setPriority(imageView, priority);
+	}
+
+	public void cancelRequest(ImageView imageView) {
+		mImageLoader.cancelRequest(imageView);
+	}
+
+	public void releaseBitmap(ImageView imageView) {
+		mImageLoader.releaseBitmap(imageView);
+		mImageViews.remove(imageView);
+	}
+
+	// 取消所有ImageView的加载并释放它们的图片
+	public void close() {
+		mClosed = true;
+		for (ImageView imageView : new ArrayList<ImageView>(mImageViews.keySet())) {
+			mImageLoader.releaseBitmap(imageView);
+		}
+		mImageViews.clear();
+	}
+}
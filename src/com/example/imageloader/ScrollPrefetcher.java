@@ -0,0 +1,136 @@
+package com.example.imageloader;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import android.os.SystemClock;
+import android.widget.AbsListView;
+
+// 根据列表的滚动位置、方向和速度，以低优先级预加载即将出现的图片到磁盘和内存缓存
+// 离开预加载范围的图片会被取消
+public class ScrollPrefetcher {
+	// 按滚动速度多预加载这么长时间内会滚过的item
+	private static final long LOOKAHEAD_MILLIS = 500;
+
+	// 根据位置取url，没有图片的位置返回null
+	public interface UrlProvider {
+		String getUrl(int position);
+	}
+
+	private final ImageLoader mImageLoader;
+	private final UrlProvider mUrlProvider;
+	private final DecodeSpec mSpec;
+	private final int mMaxPrefetch;
+
+	// 位置 -> 正在进行的预加载
+	private final HashMap<Integer, LoadRequest> mPrefetches = new HashMap<Integer, LoadRequest>();
+
+	private int mLastFirstVisible = -1;
+	private long mLastScrollTime = 0;
+	// 1向下滚动，-1向上滚动
+	private int mDirection = 1;
+	// 每秒滚过的item数量
+	private float mVelocity = 0;
+	private boolean mEnabled = true;
+
+	public ScrollPrefetcher(ImageLoader imageLoader, UrlProvider urlProvider,
+			DecodeSpec spec, int maxPrefetch) {
+		mImageLoader = imageLoader;
+		mUrlProvider = urlProvider;
+		mSpec = spec;
+		mMaxPrefetch = maxPrefetch;
+		// 内存紧张时由ImageLoader取消所有预加载
+		imageLoader.registerPrefetcher(this);
+	}
+
+	// 在OnScrollListener.onScroll中调用
+	public void onScroll(AbsListView view, int firstVisibleItem,
+			int visibleItemCount, int totalItemCount) {
+		if (visibleItemCount == 0) {
+			return;
+		}
+		long now = SystemClock.uptimeMillis();
+		if (mLastFirstVisible >= 0 && firstVisibleItem != mLastFirstVisible) {
+			int delta = firstVisibleItem - mLastFirstVisible;
+			mDirection = delta > 0 ? 1 : -1;
+			long elapsed = Math.max(1, now - mLastScrollTime);
+			mVelocity = Math.abs(delta) * 1000f / elapsed;
+		} else if (mLastFirstVisible >= 0) {
+			// 位置没有变化，不更新预加载范围
+			return;
+		}
+		mLastFirstVisible = firstVisibleItem;
+		mLastScrollTime = now;
+		updateWindow(firstVisibleItem, visibleItemCount, totalItemCount);
+	}
+
+	// 在OnScrollListener.onScrollStateChanged中调用，停止滚动后速度归零
+	public void onScrollStateChanged(AbsListView view, int scrollState) {
+		if (scrollState == AbsListView.OnScrollListener.SCROLL_STATE_IDLE) {
+			mVelocity = 0;
+		}
+	}
+
+	// 关闭时取消所有预加载，例如不允许使用网络时
+	public void setEnabled(boolean enabled) {
+		mEnabled = enabled;
+		if (!enabled) {
+			cancelAll();
+		}
+	}
+
+	public void cancelAll() {
+		for (LoadRequest request : mPrefetches.values()) {
+			mImageLoader.cancelPrefetch(request);
+		}
+		mPrefetches.clear();
+	}
+
+	private void updateWindow(int firstVisibleItem, int visibleItemCount,
+			int totalItemCount) {
+		if (!mEnabled) {
+			return;
+		}
+		// 至少预加载一屏，滚得越快预加载越多
+		int count = Math.min(mMaxPrefetch, visibleItemCount
+				+ (int) (mVelocity * LOOKAHEAD_MILLIS / 1000));
+		int start;
+		int end;
+		if (mDirection > 0) {
+			start = firstVisibleItem + visibleItemCount;
+			end = Math.min(totalItemCount, start + count);
+		} else {
+			end = firstVisibleItem;
+			start = Math.max(0, end - count);
+		}
+
+		// 取消离开范围的预加载
+		Iterator<Map.Entry<Integer, LoadRequest>> iterator = mPrefetches
+				.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<Integer, LoadRequest> entry = iterator.next();
+			int position = entry.getKey();
+			if (position < start || position >= end) {
+				mImageLoader.cancelPrefetch(entry.getValue());
+				iterator.remove();
+			}
+		}
+
+		// 离可见区域近的先提交，同优先级时后提交的先执行，所以从远到近提交
+		for (int i = 0; i < end - start; i++) {
+			int position = mDirection > 0 ? end - 1 - i : start + i;
+			if (mPrefetches.containsKey(position)) {
+				continue;
+			}
+			String uri = mUrlProvider.getUrl(position);
+			if (uri == null) {
+				continue;
+			}
+			LoadRequest request = mImageLoader.prefetch(uri, mSpec);
+			if (request != null) {
+				mPrefetches.put(position, request);
+			}
+		}
+	}
+}
@@ -0,0 +1,160 @@
+package com.example.imageloader;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+// 网络数据经过这里读取，使用ByteArrayPool中的缓冲区，并统计吞吐量。
+// 有磁盘缓存时边读边写进缓存，没有时只计数
+public class StreamCopier {
+	private final ByteArrayPool mBufferPool;
+
+	private final AtomicLong mBytesCopied = new AtomicLong();
+	private final AtomicLong mCopyNanos = new AtomicLong();
+	private final AtomicLong mCopyCount = new AtomicLong();
+
+	public StreamCopier(ByteArrayPool bufferPool) {
+		mBufferPool = bufferPool;
+	}
+
+	// 返回一个读取时把数据同时写到sink的流，关闭时计入统计
+	public TeeInputStream tee(InputStream in, OutputStream sink) {
+		return new TeeInputStream(in, sink);
+	}
+
+	// 不保存数据，只统计读取的字节数和时间
+	public TeeInputStream meter(InputStream in) {
+		return new TeeInputStream(in, null);
+	}
+
+	// 读完in中剩余的数据并丢弃，对TeeInputStream来说就是把剩余数据写进sink
+	public void drain(InputStream in) throws IOException {
+		byte[] buffer = mBufferPool.get();
+		try {
+			while (in.read(buffer) != -1) {
+				// 丢弃
+			}
+		} finally {
+			mBufferPool.recycle(buffer);
+		}
+	}
+
+	public long getBytesCopied() {
+		return mBytesCopied.get();
+	}
+
+	public long getCopyCount() {
+		return mCopyCount.get();
+	}
+
+	// 平均吞吐量，单位字节/秒
+	public long getBytesPerSecond() {
+		long nanos = mCopyNanos.get();
+		if (nanos == 0) {
+			return 0;
+		}
+		return mBytesCopied.get() * 1000000000L / nanos;
+	}
+
+	@Override
+	public String toString() {
+		return "StreamCopier[copies=" + getCopyCount() + ", bytes="
+				+ getBytesCopied() + ", bytesPerSecond=" + getBytesPerSecond()
+				+ "]";
+	}
+
+	public class TeeInputStream extends FilterInputStream {
+		private final OutputStream mSink;
+		private final long mStart = System.nanoTime();
+		private long mTotal = 0;
+		private boolean mSourceErrors = false;
+		private boolean mClosed = false;
+
+		private TeeInputStream(InputStream in, OutputStream sink) {
+			super(in);
+			mSink = sink;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b;
+			try {
+				b = in.read();
+			} catch (IOException e) {
+				mSourceErrors = true;
+				throw e;
+			}
+			if (b != -1) {
+				if (mSink != null) {
+					mSink.write(b);
+				}
+				mTotal++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length)
+				throws IOException {
+			int count;
+			try {
+				count = in.read(buffer, offset, length);
+			} catch (IOException e) {
+				mSourceErrors = true;
+				throw e;
+			}
+			if (count > 0) {
+				if (mSink != null) {
+					mSink.write(buffer, offset, count);
+				}
+				mTotal += count;
+			}
+			return count;
+		}
+
+		// 跳过的数据也必须写进sink，所以用读来实现
+		@Override
+		public long skip(long byteCount) throws IOException {
+			byte[] buffer = mBufferPool.get();
+			long skipped = 0;
+			try {
+				while (skipped < byteCount) {
+					int count = read(buffer, 0,
+							(int) Math.min(buffer.length, byteCount - skipped));
+					if (count == -1) {
+						break;
+					}
+					skipped += count;
+				}
+			} finally {
+				mBufferPool.recycle(buffer);
+			}
+			return skipped;
+		}
+
+		// 上层的BufferedInputStream负责mark/reset，这里不支持
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		// 读取源数据时是否出过错，出错说明sink中的数据不完整
+		public boolean hasSourceErrors() {
+			return mSourceErrors;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (mClosed) {
+				return;
+			}
+			mClosed = true;
+			mBytesCopied.addAndGet(mTotal);
+			mCopyNanos.addAndGet(System.nanoTime() - mStart);
+			mCopyCount.incrementAndGet();
+			super.close();
+		}
+	}
+}
@@ -17,18 +17,22 @@
 package libcore.io;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
@@ -38,14 +42,16 @@ import java.lang.reflect.Array;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  ******************************************************************************
@@ -96,6 +102,43 @@ import java.util.concurrent.TimeUnit;
  * an error occurs while writing a cache value, the edit will fail silently.
  * Callers should handle other problems by catching {@code IOException} and
  * responding appropriately.
+ *
+ * <p>This class is safe for concurrent use. Operations on one key are
+ * serialized by a lock striped on the key's hash, so file I/O for different
+ * keys proceeds in parallel. The cache's monitor only guards the in-memory
+ * index and size for short critical sections, and journal writes use their
+ * own lock. Locks are always taken in the order key stripe, journal, cache
+ * monitor. READ records never wait for the journal: if it is busy they are
+ * queued and written by the next journal writer.
+ *
+ * <p>Journal records are buffered and flushed in groups. An edit still waits
+ * for its DIRTY record to reach the file before it can create any files, but
+ * editors that start within {@link #GROUP_COMMIT_WINDOW_MILLIS} of each other
+ * share a single flush. CLEAN, REMOVE and READ records are flushed in the
+ * background at most {@link #LAZY_FLUSH_DELAY_MILLIS} after they are written;
+ * losing them in a crash only drops the affected entries on the next open.
+ *
+ * <p>With {@link Options#binaryJournal} the journal is kept in a compact binary
+ * form instead, see the comment on {@link #CHECKPOINT_FILE}.
+ *
+ * <p>With {@link Options#packValuesUpTo} small values are not given files of
+ * their own. They are buffered in memory while being written and appended to
+ * shared segment files on commit; see {@link PackStore}. The segments'
+ * garbage is not counted in {@link #size}: a segment is compacted once less
+ * than half of it is live, so apart from the newest segment the garbage never
+ * outgrows the packed values themselves.
+ *
+ * <p>Entries are evicted in least recently used order unless an
+ * {@link EvictionPolicy} is given with {@link Options#evictionPolicy}.
+ *
+ * <p>By default every read appends a READ record so that the LRU order
+ * survives a restart. With {@link Options#recordReadsEvery} only some reads
+ * are journaled; the order in memory is always exact, and the full order is
+ * written whenever the journal is compacted or the cache is closed. After a
+ * crash, entries read since the last compaction come back in roughly their
+ * old order, so eviction may pick slightly different victims. Compare
+ * {@link #journalBytesWritten} with {@link #hitCount} to see what the reads
+ * cost.
  */
 public final class DiskLruCache implements Closeable {
     static final String JOURNAL_FILE = "journal";
@@ -108,8 +151,30 @@ public final class DiskLruCache implements Closeable {
     private static final String REMOVE = "REMOVE";
     private static final String READ = "READ";
 
+    static final String JOURNAL_FILE_BINARY = "journal.bin";
+    static final String JOURNAL_FILE_BINARY_TMP = "journal.bin.tmp";
+    static final String CHECKPOINT_FILE = "journal.ckpt";
+    static final String CHECKPOINT_FILE_TMP = "journal.ckpt.tmp";
+    static final int BINARY_MAGIC = 0x444c5243; // "DLRC"
+    static final int BINARY_VERSION = 1;
+    private static final int OP_CLEAN = 1;
+    private static final int OP_DIRTY = 2;
+    private static final int OP_REMOVE = 3;
+    private static final int OP_READ = 4;
+    /** A CLEAN record followed by the location of each value, see PackStore. */
+    private static final int OP_CLEAN_PACKED = 5;
+    private static final long MAX_PACK_SEGMENT_SIZE = 1024 * 1024;
+    private static final long MIN_PACK_SEGMENT_SIZE = 64 * 1024;
+    /** Binary caches checkpoint after this many ops to keep the replayed tail short. */
+    private static final int CHECKPOINT_OP_THRESHOLD = 500;
+
     private static final Charset UTF_8 = Charset.forName("UTF-8");
     private static final int IO_BUFFER_SIZE = 8 * 1024;
+    private static final int KEY_LOCK_STRIPES = 32;
+    /** How long a flushing editor waits for other editors to join its flush. */
+    static final long GROUP_COMMIT_WINDOW_MILLIS = 5;
+    /** How long CLEAN, REMOVE and READ records may stay buffered. */
+    static final long LAZY_FLUSH_DELAY_MILLIS = 1000;
 
     /*
      * This cache uses a journal file named "journal". A typical journal file
@@ -148,27 +213,104 @@ public final class DiskLruCache implements Closeable {
      * The journal file is appended to as cache operations occur. The journal may
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
-     * it exists when the cache is opened.
+     * it exists when the cache is opened. Compaction runs in the background and
+     * doesn't block other journal writers until the new journal is swapped in.
+     */
+
+    /*
+     * A cache opened with a binary journal keeps two files instead. Both start
+     * with a header of five big-endian fields: the int BINARY_MAGIC, the int
+     * BINARY_VERSION, the app version, the value count and a long generation.
+     *
+     * "journal.ckpt" is a checkpoint of the whole index. After the header it
+     * holds an int count followed by that many records in LRU order, eldest
+     * first. "journal.bin" holds the records written since the checkpoint with
+     * the same generation. A record is a byte op (1 CLEAN, 2 DIRTY, 3 REMOVE,
+     * 4 READ, 5 CLEAN with packed values), the key in modified UTF-8 as
+     * written by writeUTF, and for CLEAN records one long length per value.
+     * Records with op 5 then hold one long location per value, -1 for values
+     * that have their own file.
+     *
+     * Opening loads the checkpoint and replays the tail. Compaction writes a
+     * checkpoint with the next generation to "journal.ckpt.tmp" and a new tail
+     * to "journal.bin.tmp", holding the records written while the checkpoint
+     * was being written, then renames the checkpoint and the tail into place.
+     * If the process dies between the two renames, the old tail's generation
+     * no longer matches and "journal.bin.tmp" is replayed instead. A tail
+     * whose last record was torn by a crash is replayed up to that record and
+     * then replaced.
+     *
+     * A text journal found when opening with a binary journal is migrated: the
+     * checkpoint is written first and the text journal deleted afterwards.
      */
 
     private final File directory;
     private final File journalFile;
     private final File journalFileTmp;
+    private final File binaryJournalFile;
+    private final File binaryJournalFileTmp;
+    private final File checkpointFile;
+    private final File checkpointFileTmp;
+    private final boolean binaryJournal;
+    /** Values up to this many bytes go to packStore, 0 if packing is off. */
+    private final int packThreshold;
+    private final PackStore packStore;
+    /** Picks eviction victims, or null to evict in lruEntries order. Guarded by this. */
+    private final EvictionPolicy evictionPolicy;
+    /** Generation of the current checkpoint. Guarded by journalLock. */
+    private long generation;
     private final int appVersion;
     private final long maxSize;
     private final int valueCount;
     private long size = 0;
-    private Writer journalWriter;
+    /** Guarded by journalLock; null once the cache is closed. */
+    private volatile JournalWriter journalWriter;
+    private final ReentrantLock journalLock = new ReentrantLock();
+    /** Keys of READ records that arrived while the journal was busy. */
+    private final ConcurrentLinkedQueue<String> pendingReads
+            = new ConcurrentLinkedQueue<String>();
+    /** Number of records written to journalWriter. Guarded by journalLock. */
+    private long journalRecords;
+    /**
+     * Records written while a compaction rewrites the journal, which it
+     * appends to the new journal before swapping it in. Null when no
+     * compaction is running. Guarded by journalLock.
+     */
+    private List<Record> compactionTail;
+    /** Group commit state, guarded by flushMonitor. */
+    private final Object flushMonitor = new Object();
+    private long flushedRecords;
+    private boolean flushInProgress;
+    private boolean lazyFlushScheduled;
+    /** Editors between starting an edit and seeing their DIRTY record flushed. */
+    private int pendingEditors;
+    /** Serializes file operations on keys that hash to the same stripe. */
+    private final Object[] keyLocks = new Object[KEY_LOCK_STRIPES];
     private final LinkedHashMap<String, Entry> lruEntries
             = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    /**
+     * The entries of lruEntries by key, for lookups that must not move an
+     * entry in the LRU order. Filled once the journal is processed.
+     */
+    private final HashMap<String, Entry> entriesByKey = new HashMap<String, Entry>();
     private int redundantOpCount;
+    /** Journal one in this many reads, or none if 0. */
+    private final int readRecordInterval;
+    private long readsSinceRecord;
+    /** Reads that changed the LRU order without a journal record. */
+    private long unrecordedReads;
+    private long hitCount;
+    /** Bytes written to journal, checkpoint and temporary files. */
+    private final AtomicLong journalBytesWritten = new AtomicLong();
 
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
      * its sequence number is not equal to its entry's sequence number.
+     * Entries read from the journal have sequence number 0, so numbering
+     * starts at 1.
      */
-    private long nextSequenceNumber = 0;
+    private long nextSequenceNumber = 1;
 
     /* From java.util.Arrays */
     @SuppressWarnings("unchecked")
@@ -266,32 +408,87 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
-    /** This cache uses a single background thread to evict entries. */
-    private final ExecutorService executorService = new ThreadPoolExecutor(0, 1,
-            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+    /**
+     * This cache uses a single background thread to evict entries and to run
+     * delayed journal flushes. The thread exits after a minute without work.
+     */
+    private final ScheduledThreadPoolExecutor executorService = newExecutor();
+
+    private static ScheduledThreadPoolExecutor newExecutor() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        executor.setKeepAliveTime(60L, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     private final Callable<Void> cleanupCallable = new Callable<Void>() {
         @Override public Void call() throws Exception {
+            if (journalWriter == null) {
+                return null; // closed
+            }
+            trimToSize();
+            if (packStore != null) {
+                compactPackStore();
+            }
+            boolean rebuild;
             synchronized (DiskLruCache.this) {
+                rebuild = journalRebuildRequired();
+            }
+            if (rebuild) {
+                compactJournal();
+            }
+            return null;
+        }
+    };
+    private final Callable<Void> lazyFlushCallable = new Callable<Void>() {
+        @Override public Void call() throws Exception {
+            // records written from now on schedule another flush
+            synchronized (flushMonitor) {
+                lazyFlushScheduled = false;
+            }
+            long records;
+            journalLock.lock();
+            try {
                 if (journalWriter == null) {
                     return null; // closed
                 }
-                trimToSize();
-                if (journalRebuildRequired()) {
-                    rebuildJournal();
-                    redundantOpCount = 0;
-                }
+                records = journalRecords;
+            } finally {
+                journalLock.unlock();
             }
+            awaitJournalFlush(records, 0);
             return null;
         }
     };
 
-    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+            Options options) {
         this.directory = directory;
         this.appVersion = appVersion;
         this.journalFile = new File(directory, JOURNAL_FILE);
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+        this.binaryJournalFile = new File(directory, JOURNAL_FILE_BINARY);
+        this.binaryJournalFileTmp = new File(directory, JOURNAL_FILE_BINARY_TMP);
+        this.checkpointFile = new File(directory, CHECKPOINT_FILE);
+        this.checkpointFileTmp = new File(directory, CHECKPOINT_FILE_TMP);
+        this.binaryJournal = options.binaryJournal;
+        this.packThreshold = options.packThreshold;
+        // the newest segment is never compacted, so keep it small next to maxSize
+        long segmentSize = Math.max(MIN_PACK_SEGMENT_SIZE,
+                Math.min(MAX_PACK_SEGMENT_SIZE, maxSize / 16));
+        this.packStore = packThreshold > 0 ? new PackStore(directory, segmentSize) : null;
+        this.evictionPolicy = options.evictionPolicy != null
+                ? options.evictionPolicy.create(maxSize) : null;
+        this.readRecordInterval = options.readRecordInterval;
         this.valueCount = valueCount;
         this.maxSize = maxSize;
+        for (int i = 0; i < KEY_LOCK_STRIPES; i++) {
+            keyLocks[i] = new Object();
+        }
+    }
+
+    private Object lockFor(String key) {
+        return keyLocks[(key.hashCode() & 0x7fffffff) % KEY_LOCK_STRIPES];
     }
 
     /**
@@ -304,39 +501,80 @@ public final class DiskLruCache implements Closeable {
      * @param maxSize the maximum number of bytes this cache should use to store
      * @throws java.io.IOException if reading or writing the cache directory fails
      */
-    //ʹopenDiskLruCache
+    //使用open方法创建DiskLruCache对象
     public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
             throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, new Options());
+    }
+
+    /**
+     * Opens the cache in {@code directory} with {@code options}, creating a
+     * cache if none exists there.
+     *
+     * @see #open(File, int, int, long)
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+            Options options) throws IOException {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
         if (valueCount <= 0) {
             throw new IllegalArgumentException("valueCount <= 0");
         }
+        if (options.packThreshold > 0 && !options.binaryJournal) {
+            throw new IllegalArgumentException("packed values need a binary journal");
+        }
 
         // prefer to pick up where we left off
-        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
-        if (cache.journalFile.exists()) {
-            try {
-                cache.readJournal();
-                cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
-                        IO_BUFFER_SIZE);
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, options);
+        try {
+            if (cache.loadJournal()) {
                 return cache;
-            } catch (IOException journalIsCorrupt) {
-//                System.logW("DiskLruCache " + directory + " is corrupt: "
-//                        + journalIsCorrupt.getMessage() + ", removing");
-                cache.delete();
             }
+        } catch (IOException journalIsCorrupt) {
+//            System.logW("DiskLruCache " + directory + " is corrupt: "
+//                    + journalIsCorrupt.getMessage() + ", removing");
+            cache.delete();
         }
 
         // create a new empty cache
         directory.mkdirs();
-        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, options);
         cache.rebuildJournal();
         return cache;
     }
 
+    /**
+     * Loads the index from whichever journal exists and opens it for
+     * appending. Returns false if there is no journal.
+     */
+    private boolean loadJournal() throws IOException {
+        if (binaryJournal && checkpointFile.exists()) {
+            boolean appendable = readCheckpoint();
+            processJournal();
+            if (appendable) {
+                journalWriter = new BinaryJournalWriter(binaryJournalFile, true);
+            } else {
+                rebuildJournal();
+            }
+            // left behind if a migration was interrupted
+            deleteIfExists(journalFile);
+            return true;
+        }
+        if (journalFile.exists()) {
+            readJournal();
+            processJournal();
+            if (binaryJournal) {
+                rebuildJournal();
+                deleteIfExists(journalFile);
+            } else {
+                journalWriter = new TextJournalWriter(journalFile, true);
+            }
+            return true;
+        }
+        return false;
+    }
+
     private void readJournal() throws IOException {
         InputStream in = new BufferedInputStream(new FileInputStream(journalFile), IO_BUFFER_SIZE);
         try {
@@ -380,6 +618,10 @@ public final class DiskLruCache implements Closeable {
 
         Entry entry = lruEntries.get(key);
         if (entry == null) {
+            if (parts[0].equals(READ) && parts.length == 2) {
+                // a queued READ may land after the entry's REMOVE
+                return;
+            }
             entry = new Entry(key);
             lruEntries.put(key, entry);
         }
@@ -397,12 +639,146 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    /**
+     * Loads the checkpoint and replays the binary journal written after it.
+     * Returns false if that journal can't be appended to, because it belongs
+     * to an older checkpoint or ends in a torn record.
+     */
+    private boolean readCheckpoint() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(checkpointFile), IO_BUFFER_SIZE));
+        try {
+            generation = readBinaryHeader(in);
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                if (!readBinaryRecord(in)) {
+                    throw new EOFException("truncated checkpoint");
+                }
+            }
+        } finally {
+            closeQuietly(in);
+        }
+
+        Boolean complete = replayTail(binaryJournalFile);
+        if (complete == null) {
+            // a compaction may have stopped between installing its checkpoint and its tail
+            replayTail(binaryJournalFileTmp);
+            return false;
+        }
+        return complete;
+    }
+
+    /**
+     * Replays a binary journal tail written after the loaded checkpoint.
+     * Returns null if the file doesn't exist or belongs to another
+     * checkpoint, and false if its last record is torn.
+     */
+    private Boolean replayTail(File file) throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), IO_BUFFER_SIZE));
+        try {
+            if (readBinaryHeader(in) != generation) {
+                return null; // written before the checkpoint
+            }
+            while (readBinaryRecord(in)) {
+            }
+            return true;
+        } catch (EOFException tornRecord) {
+            return false;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Reads a binary header and returns its generation.
+     */
+    private long readBinaryHeader(DataInputStream in) throws IOException {
+        int magic = in.readInt();
+        int version = in.readInt();
+        int appVersionValue = in.readInt();
+        int valueCountValue = in.readInt();
+        long generationValue = in.readLong();
+        if (magic != BINARY_MAGIC
+                || version != BINARY_VERSION
+                || appVersionValue != appVersion
+                || valueCountValue != valueCount) {
+            throw new IOException("unexpected journal header: ["
+                    + magic + ", " + version + ", " + appVersionValue + ", "
+                    + valueCountValue + "]");
+        }
+        return generationValue;
+    }
+
+    /**
+     * Replays one binary record. Returns false at the end of the stream and
+     * throws EOFException if the stream ends inside a record.
+     */
+    private boolean readBinaryRecord(DataInputStream in) throws IOException {
+        int op = in.read();
+        if (op == -1) {
+            return false;
+        }
+        if (op < OP_CLEAN || op > OP_CLEAN_PACKED) {
+            throw new IOException("unexpected journal record: " + op);
+        }
+        String key = in.readUTF();
+        long[] lengths = null;
+        long[] locations = null;
+        if (op == OP_CLEAN || op == OP_CLEAN_PACKED) {
+            lengths = new long[valueCount];
+            for (int i = 0; i < valueCount; i++) {
+                lengths[i] = in.readLong();
+            }
+        }
+        if (op == OP_CLEAN_PACKED) {
+            locations = new long[valueCount];
+            for (int i = 0; i < valueCount; i++) {
+                locations[i] = in.readLong();
+            }
+            op = OP_CLEAN;
+        }
+
+        if (op == OP_REMOVE) {
+            lruEntries.remove(key);
+            return true;
+        }
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            if (op == OP_READ) {
+                // a queued READ may land after the entry's REMOVE
+                return true;
+            }
+            entry = new Entry(key);
+            lruEntries.put(key, entry);
+        }
+        if (op == OP_CLEAN) {
+            entry.readable = true;
+            entry.currentEditor = null;
+            System.arraycopy(lengths, 0, entry.lengths, 0, valueCount);
+            if (locations != null) {
+                System.arraycopy(locations, 0, entry.locations, 0, valueCount);
+            } else {
+                Arrays.fill(entry.locations, PackStore.IN_FILE);
+            }
+        } else if (op == OP_DIRTY) {
+            entry.currentEditor = new Editor(entry);
+        }
+        // READ: this work was already done by calling lruEntries.get()
+        return true;
+    }
+
     /**
      * Computes the initial size and collects garbage as a part of opening the
      * cache. Dirty entries are assumed to be inconsistent and will be deleted.
      */
     private void processJournal() throws IOException {
         deleteIfExists(journalFileTmp);
+        deleteIfExists(binaryJournalFileTmp);
+        deleteIfExists(checkpointFileTmp);
         for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
             Entry entry = i.next();
             if (entry.currentEditor == null) {
@@ -418,39 +794,208 @@ public final class DiskLruCache implements Closeable {
                 i.remove();
             }
         }
+
+        if (packStore != null) {
+            packStore.load();
+            for (Entry entry : lruEntries.values()) {
+                for (int t = 0; t < valueCount; t++) {
+                    if (entry.isPacked(t)) {
+                        packStore.markLive(entry.locations[t], entry.lengths[t]);
+                    }
+                }
+            }
+            packStore.deleteUnusedSegments();
+        }
+
+        for (Entry entry : lruEntries.values()) {
+            entriesByKey.put(entry.key, entry);
+        }
+        if (evictionPolicy != null) {
+            for (Entry entry : lruEntries.values()) {
+                evictionPolicy.recordWrite(entry.key, entry.totalLength());
+            }
+        }
     }
 
     /**
      * Creates a new journal that omits redundant information. This replaces the
-     * current journal if it exists.
+     * current journal if it exists. For a binary journal this writes a new
+     * checkpoint and starts an empty tail.
      */
-    private synchronized void rebuildJournal() throws IOException {
+    private void rebuildJournal() throws IOException {
+        journalLock.lock();
+        try {
+            rebuildJournalLocked();
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    private void rebuildJournalLocked() throws IOException {
         if (journalWriter != null) {
             journalWriter.close();
         }
+        // queued READs only reorder entries, the new journal already has the current order
+        pendingReads.clear();
+
+        List<Record> records = snapshotRecords();
+        if (binaryJournal) {
+            long nextGeneration = generation + 1;
+            writeCheckpoint(records, nextGeneration);
+            installCheckpoint(nextGeneration, new ArrayList<Record>());
+        } else {
+            TextJournalWriter writer = new TextJournalWriter(journalFileTmp, false);
+            writer.writeHeader();
+            for (Record record : records) {
+                writer.write(record.op, record.key, record.lengths, record.locations);
+            }
+            writer.close();
+            journalFileTmp.renameTo(journalFile);
+            journalWriter = new TextJournalWriter(journalFile, true);
+        }
+        // everything written so far is in the new journal
+        synchronized (flushMonitor) {
+            flushedRecords = Math.max(flushedRecords, journalRecords);
+        }
+    }
 
-        Writer writer = new BufferedWriter(new FileWriter(journalFileTmp), IO_BUFFER_SIZE);
-        writer.write(MAGIC);
-        writer.write("\n");
-        writer.write(VERSION_1);
-        writer.write("\n");
-        writer.write(Integer.toString(appVersion));
-        writer.write("\n");
-        writer.write(Integer.toString(valueCount));
-        writer.write("\n");
-        writer.write("\n");
-
+    /**
+     * Returns the records that recreate the index as it is now, and resets
+     * the count of redundant records.
+     */
+    private synchronized List<Record> snapshotRecords() {
+        List<Record> records = new ArrayList<Record>(lruEntries.size());
         for (Entry entry : lruEntries.values()) {
             if (entry.currentEditor != null) {
-                writer.write(DIRTY + ' ' + entry.key + '\n');
+                records.add(new Record(DIRTY, entry.key, null, null));
             } else {
-                writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+                records.add(new Record(CLEAN, entry.key, entry.lengths.clone(),
+                        entry.locations.clone()));
+            }
+        }
+        redundantOpCount = 0;
+        unrecordedReads = 0; // the records are in LRU order
+        return records;
+    }
+
+    /**
+     * Writes {@code records} to the temporary checkpoint file.
+     */
+    private void writeCheckpoint(List<Record> records, long nextGeneration) throws IOException {
+        BinaryJournalWriter checkpoint = new BinaryJournalWriter(checkpointFileTmp, false);
+        try {
+            checkpoint.writeHeader(nextGeneration);
+            checkpoint.out.writeInt(records.size());
+            for (Record record : records) {
+                checkpoint.write(record.op, record.key, record.lengths, record.locations);
+            }
+        } finally {
+            checkpoint.close();
+        }
+    }
+
+    /**
+     * Replaces the checkpoint with the temporary one and starts a tail that
+     * holds {@code tail}. The caller must hold journalLock and have closed the
+     * journal writer.
+     */
+    private void installCheckpoint(long nextGeneration, List<Record> tail) throws IOException {
+        BinaryJournalWriter writer = new BinaryJournalWriter(binaryJournalFileTmp, false);
+        try {
+            writer.writeHeader(nextGeneration);
+            for (Record record : tail) {
+                writer.write(record.op, record.key, record.lengths, record.locations);
+            }
+        } finally {
+            writer.close();
+        }
+        // from here on the old tail is ignored, its generation doesn't match;
+        // if the rename below doesn't happen, opening replays the temporary tail
+        checkpointFileTmp.renameTo(checkpointFile);
+        generation = nextGeneration;
+        binaryJournalFileTmp.renameTo(binaryJournalFile);
+        journalWriter = new BinaryJournalWriter(binaryJournalFile, true);
+    }
+
+    /**
+     * Rewrites the journal without blocking other journal writers. The new
+     * journal is written from a point-in-time view of the index while records
+     * keep going to the live journal; they are also kept in compactionTail
+     * and appended to the new journal right before it replaces the live one.
+     * Replaying a record whose change is already in the view leaves the
+     * entry unchanged, so the view needn't be taken atomically with the
+     * records.
+     */
+    private void compactJournal() throws IOException {
+        List<Record> records;
+        long nextGeneration;
+        journalLock.lock();
+        try {
+            if (journalWriter == null || compactionTail != null) {
+                return; // closed, or another compaction is running
             }
+            writePendingReads();
+            records = snapshotRecords();
+            nextGeneration = generation + 1;
+            compactionTail = new ArrayList<Record>();
+        } finally {
+            journalLock.unlock();
         }
 
-        writer.close();
-        journalFileTmp.renameTo(journalFile);
-        journalWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
+        TextJournalWriter textWriter = null;
+        boolean installed = false;
+        try {
+            if (binaryJournal) {
+                writeCheckpoint(records, nextGeneration);
+            } else {
+                textWriter = new TextJournalWriter(journalFileTmp, false);
+                textWriter.writeHeader();
+                for (Record record : records) {
+                    textWriter.write(record.op, record.key, record.lengths, record.locations);
+                }
+            }
+
+            journalLock.lock();
+            try {
+                if (journalWriter == null) {
+                    return; // closed
+                }
+                writePendingReads();
+                journalWriter.close();
+                if (binaryJournal) {
+                    installCheckpoint(nextGeneration, compactionTail);
+                } else {
+                    for (Record record : compactionTail) {
+                        textWriter.write(record.op, record.key, record.lengths,
+                                record.locations);
+                    }
+                    textWriter.close();
+                    textWriter = null;
+                    journalFileTmp.renameTo(journalFile);
+                    journalWriter = new TextJournalWriter(journalFile, true);
+                }
+                installed = true;
+                compactionTail = null;
+                // everything written so far is in the new journal
+                synchronized (flushMonitor) {
+                    flushedRecords = Math.max(flushedRecords, journalRecords);
+                }
+            } finally {
+                journalLock.unlock();
+            }
+        } finally {
+            if (!installed) {
+                closeQuietly(textWriter);
+                journalLock.lock();
+                try {
+                    compactionTail = null;
+                } finally {
+                    journalLock.unlock();
+                }
+                deleteIfExists(journalFileTmp);
+                deleteIfExists(checkpointFileTmp);
+            }
+        }
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -469,42 +1014,88 @@ public final class DiskLruCache implements Closeable {
     /**
      * Returns a snapshot of the entry named {@code key}, or null if it doesn't
      * exist is not currently readable. If a value is returned, it is moved to
-     * the head of the LRU queue.
+     * the head of the LRU queue. The snapshot opens each value when it is
+     * first asked for.
      */
-    public synchronized Snapshot get(String key) throws IOException {
+    public Snapshot get(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null) {
-            return null;
+        Snapshot snapshot;
+        boolean cleanup;
+        boolean recordRead;
+        synchronized (this) {
+            Entry entry = lruEntries.get(key);
+            if (entry == null || !entry.readable) {
+                return null;
+            }
+            snapshot = new Snapshot(entry, entry.sequenceNumber,
+                    entry.valueSequenceNumbers.clone(), entry.lengths.clone());
+            if (evictionPolicy != null) {
+                evictionPolicy.recordRead(key);
+            }
+            hitCount++;
+            recordRead = shouldRecordRead();
+            if (recordRead) {
+                redundantOpCount++;
+            } else {
+                unrecordedReads++;
+            }
+            cleanup = journalRebuildRequired();
         }
 
-        if (!entry.readable) {
-            return null;
+        if (recordRead) {
+            appendRead(key);
+        }
+        if (cleanup) {
+            executorService.submit(cleanupCallable);
         }
+        return snapshot;
+    }
 
-        /*
-         * Open all streams eagerly to guarantee that we see a single published
-         * snapshot. If we opened streams lazily then the streams could come
-         * from different edits.
-         */
-        InputStream[] ins = new InputStream[valueCount];
-        try {
-            for (int i = 0; i < valueCount; i++) {
-                ins[i] = new FileInputStream(entry.getCleanFile(i));
-            }
-        } catch (FileNotFoundException e) {
-            // a file must have been deleted manually!
-            return null;
+    /**
+     * Returns true if the current read should be journaled. Callers must hold
+     * the cache's monitor.
+     */
+    private boolean shouldRecordRead() {
+        if (readRecordInterval <= 1) {
+            return readRecordInterval == 1;
         }
+        return ++readsSinceRecord % readRecordInterval == 0;
+    }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+    /**
+     * Opens a committed value from its file or its segment. The caller must
+     * hold the key's lock, which keeps the value's location stable.
+     */
+    private InputStream openValue(Entry entry, int index) throws IOException {
+        if (entry.isPacked(index)) {
+            return packStore.open(entry.locations[index], entry.lengths[index]);
         }
+        return new FileInputStream(entry.getCleanFile(index));
+    }
 
-        return new Snapshot(key, entry.sequenceNumber, ins);
+    /**
+     * Opens a value for {@code snapshot}, or returns null if the value was
+     * rewritten or removed after the snapshot was taken. The key's lock keeps
+     * edits and removals of the entry out while the value is opened.
+     */
+    private InputStream openSnapshotValue(Snapshot snapshot, int index) throws IOException {
+        Entry entry = snapshot.entry;
+        synchronized (lockFor(entry.key)) {
+            synchronized (this) {
+                if (entriesByKey.get(entry.key) != entry || !entry.readable
+                        || entry.valueSequenceNumbers[index]
+                                != snapshot.valueSequenceNumbers[index]) {
+                    return null;
+                }
+            }
+            try {
+                return openValue(entry, index);
+            } catch (FileNotFoundException e) {
+                // a file must have been deleted manually!
+                return null;
+            }
+        }
     }
 
     /**
@@ -515,27 +1106,48 @@ public final class DiskLruCache implements Closeable {
         return edit(key, ANY_SEQUENCE_NUMBER);
     }
 
-    private synchronized Editor edit(String key, long expectedSequenceNumber) throws IOException {
+    private Editor edit(String key, long expectedSequenceNumber) throws IOException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
-                && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
-            return null; // snapshot is stale
+        synchronized (flushMonitor) {
+            pendingEditors++;
         }
-        if (entry == null) {
-            entry = new Entry(key);
-            lruEntries.put(key, entry);
-        } else if (entry.currentEditor != null) {
-            return null; // another edit is in progress
+        try {
+            return editAndFlush(key, expectedSequenceNumber);
+        } finally {
+            synchronized (flushMonitor) {
+                pendingEditors--;
+            }
         }
+    }
+
+    private Editor editAndFlush(String key, long expectedSequenceNumber)
+            throws IOException {
+        Editor editor;
+        long record;
+        synchronized (lockFor(key)) {
+            synchronized (this) {
+                Entry entry = lruEntries.get(key);
+                if (expectedSequenceNumber != ANY_SEQUENCE_NUMBER
+                        && (entry == null || entry.sequenceNumber != expectedSequenceNumber)) {
+                    return null; // snapshot is stale
+                }
+                if (entry == null) {
+                    entry = new Entry(key);
+                    lruEntries.put(key, entry);
+                    entriesByKey.put(key, entry);
+                } else if (entry.currentEditor != null) {
+                    return null; // another edit is in progress
+                }
 
-        Editor editor = new Editor(entry);
-        entry.currentEditor = editor;
+                editor = new Editor(entry);
+                entry.currentEditor = editor;
+            }
 
+            record = writeJournal(DIRTY, key, null, null);
+        }
         // flush the journal before creating files to prevent file leaks
-        journalWriter.write(DIRTY + ' ' + key + '\n');
-        journalWriter.flush();
+        awaitJournalFlush(record, GROUP_COMMIT_WINDOW_MILLIS);
         return editor;
     }
 
@@ -563,61 +1175,143 @@ public final class DiskLruCache implements Closeable {
         return size;
     }
 
-    private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
+    /**
+     * Returns the number of reads that found a readable entry.
+     */
+    public synchronized long hitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of bytes written to the journal, including
+     * checkpoints and compactions, since the cache was opened.
+     */
+    public long journalBytesWritten() {
+        return journalBytesWritten.get();
+    }
+
+    private void completeEdit(Editor editor, boolean success) throws IOException {
         Entry entry = editor.entry;
-        if (entry.currentEditor != editor) {
-            throw new IllegalStateException();
-        }
+        synchronized (lockFor(entry.key)) {
+            boolean readable;
+            synchronized (this) {
+                if (entry.currentEditor != editor) {
+                    throw new IllegalStateException();
+                }
+                readable = entry.readable;
+            }
 
-        // if this edit is creating the entry for the first time, every index must have a value
-        if (success && !entry.readable) {
-            for (int i = 0; i < valueCount; i++) {
-                if (!entry.getDirtyFile(i).exists()) {
-                    editor.abort();
-                    throw new IllegalStateException("edit didn't create file " + i);
+            // if this edit is creating the entry for the first time, every index must have a value
+            if (success && !readable) {
+                for (int i = 0; i < valueCount; i++) {
+                    if (editor.packedValue(i) == null && !entry.getDirtyFile(i).exists()) {
+                        editor.abort();
+                        throw new IllegalStateException("edit didn't create file " + i);
+                    }
                 }
             }
-        }
 
-        for (int i = 0; i < valueCount; i++) {
-            File dirty = entry.getDirtyFile(i);
-            if (success) {
-                if (dirty.exists()) {
-                    File clean = entry.getCleanFile(i);
-                    dirty.renameTo(clean);
-                    long oldLength = entry.lengths[i];
-                    long newLength = clean.length();
-                    entry.lengths[i] = newLength;
-                    size = size - oldLength + newLength;
+            // the key's lock keeps readers of this entry out while files are renamed
+            long[] newLengths = new long[valueCount];
+            long[] newLocations = new long[valueCount];
+            boolean[] written = new boolean[valueCount];
+            for (int i = 0; i < valueCount; i++) {
+                File dirty = entry.getDirtyFile(i);
+                byte[] packed = editor.packedValue(i);
+                if (success) {
+                    if (packed != null) {
+                        newLocations[i] = packStore.append(packed, 0, packed.length);
+                        newLengths[i] = packed.length;
+                        written[i] = true;
+                    } else if (dirty.exists()) {
+                        File clean = entry.getCleanFile(i);
+                        dirty.renameTo(clean);
+                        newLengths[i] = clean.length();
+                        newLocations[i] = PackStore.IN_FILE;
+                        written[i] = true;
+                    }
+                } else {
+                    deleteIfExists(dirty);
                 }
-            } else {
-                deleteIfExists(dirty);
             }
-        }
 
-        redundantOpCount++;
-        entry.currentEditor = null;
-        if (entry.readable | success) {
-            entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
-            if (success) {
-                entry.sequenceNumber = nextSequenceNumber++;
+            String op;
+            long[] lengths = null;
+            long[] locations = null;
+            List<File> staleFiles = new ArrayList<File>();
+            long[] oldLocations = new long[valueCount];
+            long[] oldLengths = new long[valueCount];
+            Arrays.fill(oldLocations, PackStore.IN_FILE);
+            boolean cleanup;
+            synchronized (this) {
+                for (int i = 0; i < valueCount; i++) {
+                    if (written[i]) {
+                        if (entry.isPacked(i)) {
+                            oldLocations[i] = entry.locations[i];
+                            oldLengths[i] = entry.lengths[i];
+                        } else if (entry.readable && newLocations[i] != PackStore.IN_FILE) {
+                            staleFiles.add(entry.getCleanFile(i));
+                        }
+                        size = size - entry.lengths[i] + newLengths[i];
+                        entry.lengths[i] = newLengths[i];
+                        entry.locations[i] = newLocations[i];
+                        entry.valueSequenceNumbers[i] = nextSequenceNumber;
+                    }
+                }
+
+                redundantOpCount++;
+                entry.currentEditor = null;
+                if (entry.readable | success) {
+                    // an edit of a published entry doesn't make it new again
+                    boolean update = entry.readable;
+                    entry.readable = true;
+                    op = CLEAN;
+                    lengths = entry.lengths.clone();
+                    locations = entry.locations.clone();
+                    if (success) {
+                        entry.sequenceNumber = nextSequenceNumber++;
+                        if (evictionPolicy != null && update) {
+                            evictionPolicy.recordUpdate(entry.key, entry.totalLength());
+                        } else if (evictionPolicy != null) {
+                            evictionPolicy.recordWrite(entry.key, entry.totalLength());
+                        }
+                    }
+                } else {
+                    lruEntries.remove(entry.key);
+                    entriesByKey.remove(entry.key);
+                    op = REMOVE;
+                    if (evictionPolicy != null) {
+                        evictionPolicy.recordRemoval(entry.key);
+                    }
+                }
+                cleanup = size > maxSize || journalRebuildRequired();
             }
-        } else {
-            lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
-        }
+            // the value moved into a segment, its old file is garbage now
+            for (File file : staleFiles) {
+                deleteIfExists(file);
+            }
+            writeJournal(op, entry.key, lengths, locations);
+            if (releasePacked(oldLocations, oldLengths)) {
+                cleanup |= packStore.compactionCandidate() != -1;
+            }
+            scheduleLazyFlush();
 
-        if (size > maxSize || journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+            if (cleanup) {
+                executorService.submit(cleanupCallable);
+            }
         }
     }
 
     /**
      * We only rebuild the journal when it will halve the size of the journal
-     * and eliminate at least 2000 ops.
+     * and eliminate at least 2000 ops. A binary journal is checkpointed more
+     * often, since its cost on open is the length of the tail. Callers must
+     * hold the cache's monitor.
      */
     private boolean journalRebuildRequired() {
+        if (binaryJournal) {
+            return redundantOpCount >= CHECKPOINT_OP_THRESHOLD;
+        }
         final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
         return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
                 && redundantOpCount >= lruEntries.size();
@@ -629,32 +1323,301 @@ public final class DiskLruCache implements Closeable {
      *
      * @return true if an entry was removed.
      */
-    public synchronized boolean remove(String key) throws IOException {
+    public boolean remove(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
-        Entry entry = lruEntries.get(key);
-        if (entry == null || entry.currentEditor != null) {
-            return false;
+        synchronized (lockFor(key)) {
+            Entry entry;
+            synchronized (this) {
+                entry = lruEntries.get(key);
+                if (entry == null || entry.currentEditor != null) {
+                    return false;
+                }
+            }
+
+            for (int i = 0; i < valueCount; i++) {
+                if (entry.isPacked(i)) {
+                    continue;
+                }
+                File file = entry.getCleanFile(i);
+                if (!file.delete()) {
+                    throw new IOException("failed to delete " + file);
+                }
+            }
+
+            boolean cleanup;
+            long[] oldLocations;
+            long[] oldLengths;
+            synchronized (this) {
+                oldLocations = entry.locations.clone();
+                oldLengths = entry.lengths.clone();
+                for (int i = 0; i < valueCount; i++) {
+                    entry.locations[i] = PackStore.IN_FILE;
+                    size -= entry.lengths[i];
+                    entry.lengths[i] = 0;
+                }
+                redundantOpCount++;
+                lruEntries.remove(key);
+                entriesByKey.remove(key);
+                if (evictionPolicy != null) {
+                    evictionPolicy.recordRemoval(key);
+                }
+                cleanup = journalRebuildRequired();
+            }
+            writeJournal(REMOVE, key, null, null);
+            releasePacked(oldLocations, oldLengths);
+            scheduleLazyFlush();
+
+            if (cleanup) {
+                executorService.submit(cleanupCallable);
+            }
+            return true;
         }
+    }
 
+    /**
+     * Releases the packed values among {@code locations}. Callers hold the
+     * key's lock and call this only after the record that stops referencing
+     * the values has been appended to the journal: until then their bytes
+     * stay live, so compaction can't delete a segment the journal still
+     * points into. Returns true if any value was released.
+     */
+    private boolean releasePacked(long[] locations, long[] lengths) {
+        boolean released = false;
         for (int i = 0; i < valueCount; i++) {
-            File file = entry.getCleanFile(i);
-            if (!file.delete()) {
-                throw new IOException("failed to delete " + file);
+            if (locations[i] != PackStore.IN_FILE) {
+                packStore.release(locations[i], lengths[i]);
+                released = true;
             }
-            size -= entry.lengths[i];
-            entry.lengths[i] = 0;
         }
+        return released;
+    }
+
+    /**
+     * Appends a record to the journal, after any READ records that were
+     * queued while the journal was busy. The record is only buffered; returns
+     * its number for {@link #awaitJournalFlush}.
+     */
+    private long writeJournal(String op, String key, long[] lengths, long[] locations)
+            throws IOException {
+        journalLock.lock();
+        try {
+            checkNotClosed();
+            writePendingReads();
+            appendRecord(op, key, lengths, locations);
+            return ++journalRecords;
+        } finally {
+            journalLock.unlock();
+        }
+    }
 
-        redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
-        lruEntries.remove(key);
+    /**
+     * Blocks until journal record {@code record} has been flushed. The first
+     * caller to find no flush in progress leads the next one: if other editors
+     * are on their way it waits {@code windowMillis} so that their records can
+     * join, then flushes everything buffered so far. The other callers wait
+     * for it.
+     */
+    private void awaitJournalFlush(long record, long windowMillis) throws IOException {
+        boolean joinable;
+        synchronized (flushMonitor) {
+            while (flushedRecords < record) {
+                if (!flushInProgress) {
+                    flushInProgress = true;
+                    break;
+                }
+                try {
+                    flushMonitor.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (flushedRecords >= record) {
+                return;
+            }
+            // a lone editor has nobody to wait for
+            joinable = pendingEditors > 1;
+        }
 
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+        try {
+            if (windowMillis > 0 && joinable) {
+                try {
+                    Thread.sleep(windowMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            long records;
+            journalLock.lock();
+            try {
+                checkNotClosed();
+                writePendingReads();
+                journalWriter.flush();
+                records = journalRecords;
+            } finally {
+                journalLock.unlock();
+            }
+            synchronized (flushMonitor) {
+                flushedRecords = Math.max(flushedRecords, records);
+            }
+        } finally {
+            synchronized (flushMonitor) {
+                flushInProgress = false;
+                flushMonitor.notifyAll();
+            }
         }
+    }
 
-        return true;
+    /**
+     * Makes sure records that don't need to be durable right away are flushed
+     * soon, without a write for each of them.
+     */
+    private void scheduleLazyFlush() {
+        synchronized (flushMonitor) {
+            if (lazyFlushScheduled) {
+                return;
+            }
+            lazyFlushScheduled = true;
+        }
+        executorService.schedule(lazyFlushCallable, LAZY_FLUSH_DELAY_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records a READ without waiting for the journal. READ lines only affect
+     * the LRU order, so it is fine if they are written out of order.
+     */
+    private void appendRead(String key) throws IOException {
+        if (!journalLock.tryLock()) {
+            pendingReads.offer(key);
+            return;
+        }
+        try {
+            if (journalWriter != null) {
+                writePendingReads();
+                appendRecord(READ, key, null, null);
+            }
+        } finally {
+            journalLock.unlock();
+        }
+    }
+
+    private void writePendingReads() throws IOException {
+        String key;
+        while ((key = pendingReads.poll()) != null) {
+            appendRecord(READ, key, null, null);
+        }
+    }
+
+    /**
+     * Writes a record to the live journal, and keeps it for the new journal
+     * if a compaction is running. The caller must hold journalLock.
+     */
+    private void appendRecord(String op, String key, long[] lengths, long[] locations)
+            throws IOException {
+        journalWriter.write(op, key, lengths, locations);
+        if (compactionTail != null) {
+            compactionTail.add(new Record(op, key, lengths, locations));
+        }
+    }
+
+    /**
+     * Compacts segments that are mostly garbage: their live values are moved
+     * to the newest segment and recorded in the journal, and the segment is
+     * deleted once those records are flushed, so a crash never leaves the
+     * journal pointing into a deleted segment.
+     *
+     * <p>Values are released only after the record that supersedes them is
+     * appended, so a segment with live bytes left after the moves may still
+     * be referenced by the last record of an edit or removal in progress. Such
+     * a segment is left for a later cleanup.
+     */
+    private void compactPackStore() throws IOException {
+        int segment;
+        while ((segment = packStore.compactionCandidate()) != -1) {
+            List<String> keys = new ArrayList<String>();
+            synchronized (this) {
+                for (Entry entry : lruEntries.values()) {
+                    for (int i = 0; i < valueCount; i++) {
+                        if (entry.isPacked(i)
+                                && PackStore.segmentOf(entry.locations[i]) == segment) {
+                            keys.add(entry.key);
+                            break;
+                        }
+                    }
+                }
+            }
+
+            for (String key : keys) {
+                movePackedValues(key, segment);
+            }
+            if (packStore.liveBytes(segment) > 0) {
+                return; // a superseding record isn't written yet
+            }
+            // every record that stopped referencing the segment is written by
+            // now, but may still be buffered along with other records
+            long records;
+            journalLock.lock();
+            try {
+                checkNotClosed();
+                records = journalRecords;
+            } finally {
+                journalLock.unlock();
+            }
+            awaitJournalFlush(records, 0);
+            packStore.deleteSegment(segment);
+        }
+    }
+
+    /**
+     * Moves the values of {@code key} that live in {@code segment} to the
+     * newest segment. Looking the entry up doesn't count as a use.
+     */
+    private void movePackedValues(String key, int segment) throws IOException {
+        synchronized (lockFor(key)) {
+            Entry entry;
+            long[] locations;
+            long[] lengths;
+            boolean editing;
+            synchronized (this) {
+                entry = entriesByKey.get(key);
+                if (entry == null) {
+                    return;
+                }
+                editing = entry.currentEditor != null;
+                locations = entry.locations.clone();
+                lengths = entry.lengths.clone();
+            }
+
+            boolean moved = false;
+            long[] oldLocations = new long[valueCount];
+            Arrays.fill(oldLocations, PackStore.IN_FILE);
+            for (int i = 0; i < valueCount; i++) {
+                if (locations[i] != PackStore.IN_FILE
+                        && PackStore.segmentOf(locations[i]) == segment) {
+                    byte[] value = packStore.read(locations[i], lengths[i]);
+                    oldLocations[i] = locations[i];
+                    locations[i] = packStore.append(value, 0, value.length);
+                    moved = true;
+                }
+            }
+            if (!moved) {
+                return;
+            }
+
+            // the edit in progress releases the new locations when it commits
+            synchronized (this) {
+                System.arraycopy(locations, 0, entry.locations, 0, valueCount);
+                redundantOpCount += editing ? 2 : 1;
+            }
+            writeJournal(CLEAN, key, lengths, locations);
+            if (editing) {
+                // keep the edit visible to journal replay after a crash
+                writeJournal(DIRTY, key, null, null);
+            }
+            releasePacked(oldLocations, lengths);
+        }
     }
 
     /**
@@ -673,34 +1636,107 @@ public final class DiskLruCache implements Closeable {
     /**
      * Force buffered operations to the filesystem.
      */
-    public synchronized void flush() throws IOException {
+    public void flush() throws IOException {
         checkNotClosed();
         trimToSize();
-        journalWriter.flush();
+        long records;
+        journalLock.lock();
+        try {
+            checkNotClosed();
+            writePendingReads();
+            journalWriter.flush();
+            records = journalRecords;
+        } finally {
+            journalLock.unlock();
+        }
+        synchronized (flushMonitor) {
+            flushedRecords = Math.max(flushedRecords, records);
+        }
     }
 
     /**
      * Closes this cache. Stored values will remain on the filesystem.
      */
-    public synchronized void close() throws IOException {
+    public void close() throws IOException {
         if (journalWriter == null) {
             return; // already closed
         }
-        for (Entry entry : new ArrayList<Entry>(lruEntries.values())) {
-            if (entry.currentEditor != null) {
-                entry.currentEditor.abort();
+        List<Editor> editors = new ArrayList<Editor>();
+        synchronized (this) {
+            for (Entry entry : lruEntries.values()) {
+                if (entry.currentEditor != null) {
+                    editors.add(entry.currentEditor);
+                }
+            }
+        }
+        for (Editor editor : editors) {
+            try {
+                editor.abort();
+            } catch (IllegalStateException completedConcurrently) {
             }
         }
         trimToSize();
-        journalWriter.close();
-        journalWriter = null;
+        journalLock.lock();
+        try {
+            if (journalWriter == null) {
+                return; // closed concurrently
+            }
+            boolean persistOrder;
+            synchronized (this) {
+                persistOrder = unrecordedReads > 0 && compactionTail == null;
+            }
+            if (persistOrder) {
+                // reads were left out of the journal, write down the order they made
+                rebuildJournalLocked();
+            } else {
+                writePendingReads();
+            }
+            journalWriter.close();
+            journalWriter = null;
+            if (packStore != null) {
+                packStore.close();
+            }
+        } finally {
+            journalLock.unlock();
+        }
     }
 
+    /**
+     * Evicts the least recently used entries that are not being edited, or
+     * the ones the eviction policy picks. The victim is chosen under the
+     * cache's monitor but removed outside it, since removal takes the victim
+     * key's lock first.
+     */
     private void trimToSize() throws IOException {
-        while (size > maxSize) {
-//            Map.Entry<String, Entry> toEvict = lruEntries.eldest();
-            final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
-            remove(toEvict.getKey());
+        while (true) {
+            String toEvict = null;
+            synchronized (this) {
+                if (size <= maxSize) {
+                    return;
+                }
+                if (evictionPolicy != null) {
+                    for (Iterator<String> i = evictionPolicy.evictionOrder(); i.hasNext(); ) {
+                        String key = i.next();
+                        // looking at a candidate mustn't make it recently used
+                        Entry entry = entriesByKey.get(key);
+                        if (entry != null && entry.currentEditor == null) {
+                            toEvict = key;
+                            break;
+                        }
+                    }
+                } else {
+                    for (Entry entry : lruEntries.values()) {
+                        if (entry.currentEditor == null) {
+                            toEvict = entry.key;
+                            break;
+                        }
+                    }
+                }
+            }
+            if (toEvict == null) {
+                return; // everything left is being edited
+            }
+            remove(toEvict);
         }
     }
 
@@ -726,17 +1762,227 @@ public final class DiskLruCache implements Closeable {
     }
 
     /**
-     * A snapshot of the values for an entry.
+     * Optional settings for {@link DiskLruCache#open(File, int, int, long, Options)}.
+     */
+    public static final class Options {
+        private boolean binaryJournal = false;
+        private int packThreshold = 0;
+        private EvictionPolicy.Factory evictionPolicy = null;
+        private int readRecordInterval = 1;
+
+        /**
+         * Keeps the journal in a compact binary format with a periodic
+         * checkpoint of the whole index, so opening loads the checkpoint and
+         * replays only the records written since. An existing text journal is
+         * migrated when the cache is opened. Defaults to false.
+         */
+        public Options binaryJournal(boolean binaryJournal) {
+            this.binaryJournal = binaryJournal;
+            return this;
+        }
+
+        /**
+         * Packs values of up to {@code maxBytes} into shared append-only
+         * segment files instead of giving each its own file, which saves
+         * the file creation, rename and open of every small value. Larger
+         * values still use their own files. Needs a binary journal. Defaults
+         * to 0, which turns packing off.
+         */
+        public Options packValuesUpTo(int maxBytes) {
+            this.packThreshold = maxBytes;
+            return this;
+        }
+
+        /**
+         * Lets {@code factory}'s policy choose the entries to evict. Defaults
+         * to null, which evicts the least recently used entry.
+         */
+        public Options evictionPolicy(EvictionPolicy.Factory factory) {
+            this.evictionPolicy = factory;
+            return this;
+        }
+
+        /**
+         * Journals only one in {@code interval} reads, or no reads at all if
+         * it is 0, instead of a READ record for every hit. Fewer records mean
+         * fewer journal writes and compactions for read-heavy use, at the
+         * cost of a less exact LRU order after a crash. Defaults to 1.
+         */
+        public Options recordReadsEvery(int interval) {
+            if (interval < 0) {
+                throw new IllegalArgumentException("interval < 0");
+            }
+            this.readRecordInterval = interval;
+            return this;
+        }
+    }
+
+    /** A journal record waiting to be written by a rebuild. */
+    private static final class Record {
+        private final String op;
+        private final String key;
+        private final long[] lengths;
+        private final long[] locations;
+
+        private Record(String op, String key, long[] lengths, long[] locations) {
+            this.op = op;
+            this.key = key;
+            this.lengths = lengths;
+            this.locations = locations;
+        }
+    }
+
+    /**
+     * Appends records to a journal file. {@code op} is one of CLEAN, DIRTY,
+     * REMOVE and READ; {@code lengths} and {@code locations} are only given
+     * for CLEAN.
+     */
+    private abstract class JournalWriter implements Closeable {
+        abstract void write(String op, String key, long[] lengths, long[] locations)
+                throws IOException;
+
+        abstract void flush() throws IOException;
+    }
+
+    private final class TextJournalWriter extends JournalWriter {
+        private final Writer writer;
+
+        private TextJournalWriter(File file, boolean append) throws IOException {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new CountingOutputStream(new FileOutputStream(file, append))),
+                    IO_BUFFER_SIZE);
+        }
+
+        private void writeHeader() throws IOException {
+            writer.write(MAGIC);
+            writer.write("\n");
+            writer.write(VERSION_1);
+            writer.write("\n");
+            writer.write(Integer.toString(appVersion));
+            writer.write("\n");
+            writer.write(Integer.toString(valueCount));
+            writer.write("\n");
+            writer.write("\n");
+        }
+
+        @Override void write(String op, String key, long[] lengths, long[] locations)
+                throws IOException {
+            // packing needs a binary journal, so every value here has its own file
+            StringBuilder line = new StringBuilder(op).append(' ').append(key);
+            if (lengths != null) {
+                for (long length : lengths) {
+                    line.append(' ').append(length);
+                }
+            }
+            writer.write(line.append('\n').toString());
+        }
+
+        @Override void flush() throws IOException {
+            writer.flush();
+        }
+
+        @Override public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    /** Adds the bytes written through it to journalBytesWritten. */
+    private final class CountingOutputStream extends FilterOutputStream {
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override public void write(int oneByte) throws IOException {
+            out.write(oneByte);
+            journalBytesWritten.incrementAndGet();
+        }
+
+        @Override public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            journalBytesWritten.addAndGet(length);
+        }
+    }
+
+    private final class BinaryJournalWriter extends JournalWriter {
+        private final DataOutputStream out;
+
+        private BinaryJournalWriter(File file, boolean append) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new CountingOutputStream(new FileOutputStream(file, append)),
+                    IO_BUFFER_SIZE));
+        }
+
+        private void writeHeader(long generation) throws IOException {
+            out.writeInt(BINARY_MAGIC);
+            out.writeInt(BINARY_VERSION);
+            out.writeInt(appVersion);
+            out.writeInt(valueCount);
+            out.writeLong(generation);
+        }
+
+        @Override void write(String op, String key, long[] lengths, long[] locations)
+                throws IOException {
+            boolean packed = false;
+            if (locations != null) {
+                for (long location : locations) {
+                    packed |= location != PackStore.IN_FILE;
+                }
+            }
+            if (op.equals(CLEAN)) {
+                out.writeByte(packed ? OP_CLEAN_PACKED : OP_CLEAN);
+            } else if (op.equals(DIRTY)) {
+                out.writeByte(OP_DIRTY);
+            } else if (op.equals(REMOVE)) {
+                out.writeByte(OP_REMOVE);
+            } else {
+                out.writeByte(OP_READ);
+            }
+            out.writeUTF(key);
+            if (lengths != null) {
+                for (long length : lengths) {
+                    out.writeLong(length);
+                }
+            }
+            if (packed) {
+                for (long location : locations) {
+                    out.writeLong(location);
+                }
+            }
+        }
+
+        @Override void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * A snapshot of the values for an entry. Values are opened on first use,
+     * so a reader that only needs one of them doesn't pay for the others. A
+     * value that was rewritten or removed since the snapshot was taken is not
+     * opened, which keeps every value that is returned from the same edit.
      */
     public final class Snapshot implements Closeable {
+        private final Entry entry;
         private final String key;
         private final long sequenceNumber;
+        /** The edit that wrote each value, as of when this snapshot was taken. */
+        private final long[] valueSequenceNumbers;
         private final InputStream[] ins;
+        private final long[] lengths;
+        private boolean closed;
 
-        private Snapshot(String key, long sequenceNumber, InputStream[] ins) {
-            this.key = key;
+        private Snapshot(Entry entry, long sequenceNumber, long[] valueSequenceNumbers,
+                long[] lengths) {
+            this.entry = entry;
+            this.key = entry.key;
             this.sequenceNumber = sequenceNumber;
-            this.ins = ins;
+            this.valueSequenceNumbers = valueSequenceNumbers;
+            this.ins = new InputStream[valueCount];
+            this.lengths = lengths;
         }
 
         /**
@@ -749,20 +1995,38 @@ public final class DiskLruCache implements Closeable {
         }
 
         /**
-         * Returns the unbuffered stream with the value for {@code index}.
+         * Returns the unbuffered stream with the value for {@code index}, or
+         * null if that value has changed or is gone since this snapshot was
+         * taken. Asking again for the same index returns the same stream.
          */
-        public InputStream getInputStream(int index) {
+        public synchronized InputStream getInputStream(int index) throws IOException {
+            if (closed) {
+                throw new IllegalStateException("snapshot is closed");
+            }
+            if (ins[index] == null) {
+                ins[index] = openSnapshotValue(this, index);
+            }
             return ins[index];
         }
 
         /**
-         * Returns the string value for {@code index}.
+         * Returns the string value for {@code index}, or null if it has changed
+         * since this snapshot was taken.
          */
         public String getString(int index) throws IOException {
-            return inputStreamToString(getInputStream(index));
+            InputStream in = getInputStream(index);
+            return in != null ? inputStreamToString(in) : null;
         }
 
-        @Override public void close() {
+        /**
+         * Returns the byte length of the value for {@code index}.
+         */
+        public long getLength(int index) {
+            return lengths[index];
+        }
+
+        @Override public synchronized void close() {
+            closed = true;
             for (InputStream in : ins) {
                 closeQuietly(in);
             }
@@ -775,9 +2039,16 @@ public final class DiskLruCache implements Closeable {
     public final class Editor {
         private final Entry entry;
         private boolean hasErrors;
+        /** Values small enough to be packed, kept in memory until commit. */
+        private final byte[][] packedValues;
 
         private Editor(Entry entry) {
             this.entry = entry;
+            this.packedValues = packStore != null ? new byte[valueCount][] : null;
+        }
+
+        private byte[] packedValue(int index) {
+            return packedValues != null ? packedValues[index] : null;
         }
 
         /**
@@ -792,7 +2063,9 @@ public final class DiskLruCache implements Closeable {
                 if (!entry.readable) {
                     return null;
                 }
-                return new FileInputStream(entry.getCleanFile(index));
+            }
+            synchronized (lockFor(entry.key)) {
+                return openValue(entry, index);
             }
         }
 
@@ -817,8 +2090,13 @@ public final class DiskLruCache implements Closeable {
                 if (entry.currentEditor != this) {
                     throw new IllegalStateException();
                 }
-                return new FaultHidingOutputStream(new FileOutputStream(entry.getDirtyFile(index)));
             }
+            if (packedValues != null) {
+                // a value written earlier in this edit may have spilled to the dirty file
+                deleteIfExists(entry.getDirtyFile(index));
+                return new FaultHidingOutputStream(new PackingOutputStream(index));
+            }
+            return new FaultHidingOutputStream(new FileOutputStream(entry.getDirtyFile(index)));
         }
 
         /**
@@ -855,6 +2133,56 @@ public final class DiskLruCache implements Closeable {
             completeEdit(this, false);
         }
 
+        /**
+         * Buffers a value in memory while it is small enough to be packed
+         * and spills it to the dirty file once it outgrows the threshold.
+         * The buffered value is handed to the editor when the stream is
+         * closed.
+         */
+        private class PackingOutputStream extends OutputStream {
+            private final int index;
+            private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            private OutputStream file;
+
+            private PackingOutputStream(int index) {
+                this.index = index;
+                packedValues[index] = null;
+            }
+
+            @Override public void write(int oneByte) throws IOException {
+                write(new byte[] { (byte) oneByte }, 0, 1);
+            }
+
+            @Override public void write(byte[] buffer, int offset, int length)
+                    throws IOException {
+                if (file == null && this.buffer.size() + length > packThreshold) {
+                    file = new FileOutputStream(entry.getDirtyFile(index));
+                    this.buffer.writeTo(file);
+                    this.buffer = null;
+                }
+                if (file != null) {
+                    file.write(buffer, offset, length);
+                } else {
+                    this.buffer.write(buffer, offset, length);
+                }
+            }
+
+            @Override public void flush() throws IOException {
+                if (file != null) {
+                    file.flush();
+                }
+            }
+
+            @Override public void close() throws IOException {
+                if (file != null) {
+                    file.close();
+                } else if (buffer != null) {
+                    packedValues[index] = buffer.toByteArray();
+                    buffer = null;
+                }
+            }
+        }
+
         private class FaultHidingOutputStream extends FilterOutputStream {
             private FaultHidingOutputStream(OutputStream out) {
                 super(out);
@@ -900,6 +2228,9 @@ public final class DiskLruCache implements Closeable {
         /** Lengths of this entry's files. */
         private final long[] lengths;
 
+        /** Where each value is packed, or PackStore.IN_FILE for its own file. */
+        private final long[] locations;
+
         /** True if this entry has ever been published */
         private boolean readable;
 
@@ -909,9 +2240,27 @@ public final class DiskLruCache implements Closeable {
         /** The sequence number of the most recently committed edit to this entry. */
         private long sequenceNumber;
 
+        /** The sequence number of the edit that last wrote each value. */
+        private final long[] valueSequenceNumbers;
+
         private Entry(String key) {
             this.key = key;
             this.lengths = new long[valueCount];
+            this.valueSequenceNumbers = new long[valueCount];
+            this.locations = new long[valueCount];
+            Arrays.fill(locations, PackStore.IN_FILE);
+        }
+
+        private long totalLength() {
+            long total = 0;
+            for (long length : lengths) {
+                total += length;
+            }
+            return total;
+        }
+
+        private boolean isPacked(int i) {
+            return locations[i] != PackStore.IN_FILE;
         }
 
         public String getLengths() throws IOException {
@@ -0,0 +1,445 @@
+package libcore.io;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+
+/**
+ * The built-in {@link EvictionPolicy eviction policies}.
+ *
+ * <ul>
+ *     <li>{@link #lru}: evicts the least recently used entry, like a cache
+ *         without a policy.
+ *     <li>{@link #segmentedLru}: new entries start on probation and are only
+ *         protected once read again, so a single scan through many entries
+ *         can't push out the entries that are read over and over.
+ *     <li>{@link #greedyDualSize}: prefers to evict large entries, and
+ *         entries that haven't been read for long. Keeps more entries in the
+ *         same space, which raises the hit ratio when most reads are for
+ *         small values.
+ *     <li>{@link #tinyLfu}: an admission filter in front of another policy.
+ *         A newly written entry only displaces the other policy's victim if
+ *         its key was requested more often recently; otherwise the new entry
+ *         is evicted first.
+ * </ul>
+ */
+public final class EvictionPolicies {
+    private EvictionPolicies() {
+    }
+
+    public static EvictionPolicy.Factory lru() {
+        return new EvictionPolicy.Factory() {
+            @Override public EvictionPolicy create(long maxSize) {
+                return new Lru();
+            }
+        };
+    }
+
+    /**
+     * @param protectedRatio the share of {@code maxSize} that entries which
+     *     were read since they were written may use, between 0 and 1.
+     */
+    public static EvictionPolicy.Factory segmentedLru(final float protectedRatio) {
+        if (protectedRatio < 0 || protectedRatio > 1) {
+            throw new IllegalArgumentException("protectedRatio: " + protectedRatio);
+        }
+        return new EvictionPolicy.Factory() {
+            @Override public EvictionPolicy create(long maxSize) {
+                return new SegmentedLru((long) (maxSize * protectedRatio));
+            }
+        };
+    }
+
+    public static EvictionPolicy.Factory greedyDualSize() {
+        return new EvictionPolicy.Factory() {
+            @Override public EvictionPolicy create(long maxSize) {
+                return new GreedyDualSize();
+            }
+        };
+    }
+
+    /**
+     * @param delegate the policy that picks victims among admitted entries
+     * @param averageEntrySize the expected size of an entry, which sizes the
+     *     frequency sketch
+     */
+    public static EvictionPolicy.Factory tinyLfu(final EvictionPolicy.Factory delegate,
+            final long averageEntrySize) {
+        if (averageEntrySize <= 0) {
+            throw new IllegalArgumentException("averageEntrySize <= 0");
+        }
+        return new EvictionPolicy.Factory() {
+            @Override public EvictionPolicy create(long maxSize) {
+                return new TinyLfu(delegate.create(maxSize), maxSize / averageEntrySize);
+            }
+        };
+    }
+
+    private static final class Lru implements EvictionPolicy {
+        private final LinkedHashMap<String, Boolean> entries
+                = new LinkedHashMap<String, Boolean>(0, 0.75f, true);
+
+        @Override public void recordWrite(String key, long size) {
+            entries.put(key, Boolean.TRUE);
+        }
+
+        @Override public void recordUpdate(String key, long size) {
+            entries.put(key, Boolean.TRUE);
+        }
+
+        @Override public void recordRead(String key) {
+            entries.get(key);
+        }
+
+        @Override public void recordRemoval(String key) {
+            entries.remove(key);
+        }
+
+        @Override public Iterator<String> evictionOrder() {
+            return entries.keySet().iterator();
+        }
+    }
+
+    private static final class SegmentedLru implements EvictionPolicy {
+        private final long maxProtectedSize;
+        /** Entries not read since they were written, in order of writing. */
+        private final LinkedHashMap<String, Long> probation = new LinkedHashMap<String, Long>();
+        /** Entries read since they were written, in access order. */
+        private final LinkedHashMap<String, Long> protectedEntries
+                = new LinkedHashMap<String, Long>(0, 0.75f, true);
+        private long protectedSize;
+
+        private SegmentedLru(long maxProtectedSize) {
+            this.maxProtectedSize = maxProtectedSize;
+        }
+
+        @Override public void recordWrite(String key, long size) {
+            Long old = protectedEntries.get(key);
+            if (old != null) {
+                protectedEntries.put(key, size);
+                protectedSize += size - old;
+                demote();
+            } else {
+                probation.remove(key);
+                probation.put(key, size);
+            }
+        }
+
+        /** Keeps the entry in its segment, an update doesn't count as a read. */
+        @Override public void recordUpdate(String key, long size) {
+            Long old = protectedEntries.get(key);
+            if (old != null) {
+                protectedEntries.put(key, size);
+                protectedSize += size - old;
+                demote();
+            } else if (probation.containsKey(key)) {
+                probation.put(key, size);
+            } else {
+                recordWrite(key, size);
+            }
+        }
+
+        @Override public void recordRead(String key) {
+            if (protectedEntries.get(key) != null) {
+                return;
+            }
+            Long size = probation.remove(key);
+            if (size != null) {
+                protectedEntries.put(key, size);
+                protectedSize += size;
+                demote();
+            }
+        }
+
+        /** Moves the least recently read protected entries back to probation. */
+        private void demote() {
+            Iterator<Map.Entry<String, Long>> i = protectedEntries.entrySet().iterator();
+            while (protectedSize > maxProtectedSize && i.hasNext()) {
+                Map.Entry<String, Long> entry = i.next();
+                i.remove();
+                protectedSize -= entry.getValue();
+                probation.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        @Override public void recordRemoval(String key) {
+            Long size = protectedEntries.remove(key);
+            if (size != null) {
+                protectedSize -= size;
+            } else {
+                probation.remove(key);
+            }
+        }
+
+        @Override public Iterator<String> evictionOrder() {
+            return concat(probation.keySet().iterator(),
+                    protectedEntries.keySet().iterator());
+        }
+    }
+
+    /**
+     * GreedyDual-Size with a uniform cost: an entry's priority is the
+     * inflation value plus one over its size, and is renewed on every read.
+     * Evicting an entry raises the inflation value to its priority, so
+     * entries that aren't read eventually fall below newer ones.
+     */
+    private static final class GreedyDualSize implements EvictionPolicy {
+        private final HashMap<String, Node> nodes = new HashMap<String, Node>();
+        private final TreeSet<Node> queue = new TreeSet<Node>();
+        private double inflation;
+        private long nextSequence;
+
+        @Override public void recordWrite(String key, long size) {
+            Node node = nodes.get(key);
+            if (node != null) {
+                queue.remove(node);
+                node.size = size;
+            } else {
+                node = new Node(key, size);
+                nodes.put(key, node);
+            }
+            renew(node);
+        }
+
+        @Override public void recordUpdate(String key, long size) {
+            recordWrite(key, size);
+        }
+
+        @Override public void recordRead(String key) {
+            Node node = nodes.get(key);
+            if (node != null) {
+                queue.remove(node);
+                renew(node);
+            }
+        }
+
+        private void renew(Node node) {
+            node.priority = inflation + 1.0 / Math.max(1, node.size);
+            node.sequence = nextSequence++;
+            queue.add(node);
+        }
+
+        @Override public void recordRemoval(String key) {
+            Node node = nodes.remove(key);
+            if (node == null) {
+                return;
+            }
+            if (node == queue.first()) {
+                inflation = node.priority;
+            }
+            queue.remove(node);
+        }
+
+        @Override public Iterator<String> evictionOrder() {
+            final Iterator<Node> i = queue.iterator();
+            return new Iterator<String>() {
+                @Override public boolean hasNext() {
+                    return i.hasNext();
+                }
+
+                @Override public String next() {
+                    return i.next().key;
+                }
+
+                @Override public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        private static final class Node implements Comparable<Node> {
+            private final String key;
+            private long size;
+            private double priority;
+            /** Breaks ties in favor of evicting the least recently used. */
+            private long sequence;
+
+            private Node(String key, long size) {
+                this.key = key;
+                this.size = size;
+            }
+
+            @Override public int compareTo(Node other) {
+                if (priority != other.priority) {
+                    return priority < other.priority ? -1 : 1;
+                }
+                return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+            }
+        }
+    }
+
+    /**
+     * Keeps recently written keys waiting for admission. When the cache needs
+     * room, each waiting key is compared with the delegate's victim: keys
+     * that were requested more often are admitted for good, the others are
+     * offered for eviction before anything the delegate would evict.
+     */
+    private static final class TinyLfu implements EvictionPolicy {
+        /** Keys beyond this many waiting ones are admitted without a comparison. */
+        private static final int MAX_WAITING = 64;
+
+        private final EvictionPolicy delegate;
+        private final FrequencySketch sketch;
+        private final LinkedHashSet<String> waiting = new LinkedHashSet<String>();
+
+        private TinyLfu(EvictionPolicy delegate, long expectedEntries) {
+            this.delegate = delegate;
+            this.sketch = new FrequencySketch(expectedEntries);
+        }
+
+        @Override public void recordWrite(String key, long size) {
+            sketch.increment(key);
+            delegate.recordWrite(key, size);
+            waiting.remove(key);
+            waiting.add(key);
+            if (waiting.size() > MAX_WAITING) {
+                Iterator<String> oldest = waiting.iterator();
+                oldest.next();
+                oldest.remove();
+            }
+        }
+
+        /**
+         * An entry that was already admitted doesn't wait again, and an update
+         * isn't a request, so the sketch is left alone.
+         */
+        @Override public void recordUpdate(String key, long size) {
+            delegate.recordUpdate(key, size);
+        }
+
+        @Override public void recordRead(String key) {
+            sketch.increment(key);
+            delegate.recordRead(key);
+        }
+
+        @Override public void recordRemoval(String key) {
+            waiting.remove(key);
+            delegate.recordRemoval(key);
+        }
+
+        @Override public Iterator<String> evictionOrder() {
+            String victim = null;
+            for (Iterator<String> i = delegate.evictionOrder(); i.hasNext(); ) {
+                String key = i.next();
+                if (!waiting.contains(key)) {
+                    victim = key;
+                    break;
+                }
+            }
+
+            List<String> rejected = new ArrayList<String>();
+            int victimFrequency = victim != null ? sketch.frequency(victim) : Integer.MAX_VALUE;
+            for (Iterator<String> i = waiting.iterator(); i.hasNext(); ) {
+                String key = i.next();
+                if (sketch.frequency(key) > victimFrequency) {
+                    i.remove(); // admitted
+                } else {
+                    rejected.add(key);
+                }
+            }
+            return concat(rejected.iterator(), delegate.evictionOrder());
+        }
+    }
+
+    /**
+     * A count-min sketch of how often keys were requested recently, with four
+     * rows of counters that saturate at 15. All counters are halved after a
+     * number of increments proportional to the sketch's width, so old
+     * popularity fades.
+     */
+    static final class FrequencySketch {
+        private static final int ROWS = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int MIN_WIDTH = 256;
+        private static final int MAX_WIDTH = 16 * 1024;
+        private static final int[] SEEDS = {
+                0x97cb3127, 0xb8d1b8e5, 0x2e2a9b1d, 0x85ebca6b };
+
+        private final byte[][] counters;
+        private final int mask;
+        private final int resetAfter;
+        private int increments;
+
+        FrequencySketch(long expectedEntries) {
+            int width = MIN_WIDTH;
+            while (width < expectedEntries && width < MAX_WIDTH) {
+                width <<= 1;
+            }
+            counters = new byte[ROWS][width];
+            mask = width - 1;
+            resetAfter = width * 10;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * SEEDS[row];
+            h ^= h >>> 16;
+            return h & mask;
+        }
+
+        private static int spread(String key) {
+            int h = key.hashCode();
+            return h ^ (h >>> 16);
+        }
+
+        void increment(String key) {
+            int hash = spread(key);
+            boolean added = false;
+            for (int row = 0; row < ROWS; row++) {
+                int i = index(hash, row);
+                if (counters[row][i] < MAX_COUNT) {
+                    counters[row][i]++;
+                    added = true;
+                }
+            }
+            if (added && ++increments >= resetAfter) {
+                reset();
+            }
+        }
+
+        int frequency(String key) {
+            int hash = spread(key);
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < ROWS; row++) {
+                frequency = Math.min(frequency, counters[row][index(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private void reset() {
+            for (byte[] row : counters) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = (byte) (row[i] >> 1);
+                }
+            }
+            increments /= 2;
+        }
+    }
+
+    private static <T> Iterator<T> concat(final Iterator<T> first, final Iterator<T> second) {
+        return new Iterator<T>() {
+            @Override public boolean hasNext() {
+                return first.hasNext() || second.hasNext();
+            }
+
+            @Override public T next() {
+                if (first.hasNext()) {
+                    return first.next();
+                }
+                if (second.hasNext()) {
+                    return second.next();
+                }
+                throw new NoSuchElementException();
+            }
+
+            @Override public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
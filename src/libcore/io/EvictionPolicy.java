@@ -0,0 +1,60 @@
+package libcore.io;
+
+import java.util.Iterator;
+
+/**
+ * Decides which entries a {@link DiskLruCache} evicts when it grows past its
+ * maximum size. The cache reports every committed write, update, read and
+ * removal of an entry; when it needs room it walks {@link #evictionOrder} and evicts the
+ * first entry that isn't being edited.
+ *
+ * <p>The cache calls a policy while holding its own monitor, so
+ * implementations need no locking of their own but must not block. Policy
+ * state is kept in memory only: when a cache is opened it reports every entry
+ * as written, in the order of least to most recently used.
+ *
+ * <p>See {@link EvictionPolicies} for the built-in policies.
+ */
+public interface EvictionPolicy {
+    /**
+     * Creates a policy for one cache. A factory rather than a policy is
+     * passed to the cache so that every shard of a
+     * {@link ShardedDiskLruCache} gets its own.
+     */
+    interface Factory {
+        EvictionPolicy create(long maxSize);
+    }
+
+    /**
+     * Records that an entry of {@code size} bytes was committed, either new
+     * or replacing an earlier value of {@code key}.
+     */
+    void recordWrite(String key, long size);
+
+    /**
+     * Records that an edit of an entry that was already readable was
+     * committed, for example one that only added a value. Unlike
+     * {@link #recordWrite} this says nothing about how popular the key is;
+     * {@code size} is the entry's new total size.
+     */
+    void recordUpdate(String key, long size);
+
+    /**
+     * Records that the entry for {@code key} was read.
+     */
+    void recordRead(String key);
+
+    /**
+     * Records that the entry for {@code key} is gone, because it was evicted,
+     * removed or its edit failed. Unknown keys are ignored.
+     */
+    void recordRemoval(String key);
+
+    /**
+     * Returns the keys in the order they should be evicted. The cache stops
+     * iterating as soon as it found a victim and calls
+     * {@link #recordRemoval} once the victim is gone, so the iterator need
+     * not support removal and may be computed lazily.
+     */
+    Iterator<String> evictionOrder();
+}
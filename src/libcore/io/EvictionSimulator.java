@@ -0,0 +1,163 @@
+package libcore.io;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Replays a recorded access trace against {@link EvictionPolicy eviction
+ * policies} and reports their hit ratios, without touching the filesystem.
+ *
+ * <p>A trace is a text file with one request per line: the key, a space and
+ * the size of the key's value in bytes. A request for a key that isn't cached
+ * is a miss and writes the value, the way a cache in front of the network is
+ * filled. Blank lines and lines starting with '#' are skipped.
+ *
+ * <p>Usage: {@code EvictionSimulator <trace file> <cache size in bytes>}
+ */
+public final class EvictionSimulator {
+    private EvictionSimulator() {
+    }
+
+    /** One line of a trace. */
+    public static final class Request {
+        private final String key;
+        private final long size;
+
+        public Request(String key, long size) {
+            this.key = key;
+            this.size = size;
+        }
+    }
+
+    /** The outcome of replaying a trace against one policy. */
+    public static final class Result {
+        private final String name;
+        private long requests;
+        private long hits;
+        private long requestedBytes;
+        private long hitBytes;
+
+        private Result(String name) {
+            this.name = name;
+        }
+
+        public double hitRatio() {
+            return requests == 0 ? 0 : (double) hits / requests;
+        }
+
+        /** The share of requested bytes that were served from the cache. */
+        public double byteHitRatio() {
+            return requestedBytes == 0 ? 0 : (double) hitBytes / requestedBytes;
+        }
+
+        @Override public String toString() {
+            return String.format("%-20s hits %6.2f%%  bytes %6.2f%%",
+                    name, hitRatio() * 100, byteHitRatio() * 100);
+        }
+    }
+
+    public static List<Request> readTrace(File file) throws IOException {
+        List<Request> trace = new ArrayList<Request>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                int space = line.lastIndexOf(' ');
+                if (space == -1) {
+                    throw new IOException("unexpected trace line: " + line);
+                }
+                try {
+                    trace.add(new Request(line.substring(0, space).trim(),
+                            Long.parseLong(line.substring(space + 1))));
+                } catch (NumberFormatException e) {
+                    throw new IOException("unexpected trace line: " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return trace;
+    }
+
+    /**
+     * Replays {@code trace} against a cache of {@code maxSize} bytes that
+     * evicts with {@code factory}'s policy.
+     */
+    public static Result replay(String name, EvictionPolicy.Factory factory, long maxSize,
+            List<Request> trace) {
+        EvictionPolicy policy = factory.create(maxSize);
+        HashMap<String, Long> cached = new HashMap<String, Long>();
+        long size = 0;
+        Result result = new Result(name);
+        for (Request request : trace) {
+            result.requests++;
+            result.requestedBytes += request.size;
+            Long cachedSize = cached.get(request.key);
+            if (cachedSize != null) {
+                result.hits++;
+                result.hitBytes += cachedSize;
+                policy.recordRead(request.key);
+                continue;
+            }
+
+            cached.put(request.key, request.size);
+            size += request.size;
+            policy.recordWrite(request.key, request.size);
+            while (size > maxSize) {
+                Iterator<String> order = policy.evictionOrder();
+                if (!order.hasNext()) {
+                    break;
+                }
+                String victim = order.next();
+                Long victimSize = cached.remove(victim);
+                if (victimSize == null) {
+                    throw new IllegalStateException(name + " evicted unknown key " + victim);
+                }
+                size -= victimSize;
+                policy.recordRemoval(victim);
+            }
+        }
+        return result;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: EvictionSimulator <trace file> <cache size in bytes>");
+            System.exit(1);
+        }
+        List<Request> trace = readTrace(new File(args[0]));
+        long maxSize = Long.parseLong(args[1]);
+        if (trace.isEmpty()) {
+            System.err.println("empty trace");
+            System.exit(1);
+        }
+
+        long totalSize = 0;
+        for (Request request : trace) {
+            totalSize += request.size;
+        }
+        long averageSize = Math.max(1, totalSize / trace.size());
+
+        System.out.println(trace.size() + " requests, cache size " + maxSize);
+        System.out.println(replay("lru", EvictionPolicies.lru(), maxSize, trace));
+        System.out.println(replay("segmented lru", EvictionPolicies.segmentedLru(0.8f),
+                maxSize, trace));
+        System.out.println(replay("greedydual-size", EvictionPolicies.greedyDualSize(),
+                maxSize, trace));
+        System.out.println(replay("tinylfu + lru",
+                EvictionPolicies.tinyLfu(EvictionPolicies.lru(), averageSize), maxSize, trace));
+        System.out.println(replay("tinylfu + slru",
+                EvictionPolicies.tinyLfu(EvictionPolicies.segmentedLru(0.8f), averageSize),
+                maxSize, trace));
+    }
+}
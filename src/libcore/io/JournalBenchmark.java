@@ -0,0 +1,94 @@
+package libcore.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Measures how long {@link DiskLruCache#open} takes as the number of entries
+ * grows, with a text journal and with a {@link DiskLruCache.Options#binaryJournal
+ * binary journal}. Each cache is filled with one small value per entry, closed,
+ * and then opened several times; the median open time is reported.
+ *
+ * <p>The caches are created in subdirectories of the given directory, which
+ * are deleted when the benchmark is done.
+ *
+ * <p>Usage: {@code JournalBenchmark <directory> [entry counts...]}
+ */
+public final class JournalBenchmark {
+    private static final int[] DEFAULT_ENTRY_COUNTS = { 1000, 10000, 50000 };
+    private static final int OPENS = 7;
+    private static final long MAX_SIZE = Long.MAX_VALUE / 2;
+
+    private JournalBenchmark() {
+    }
+
+    /**
+     * Fills a cache in {@code directory} with {@code entryCount} entries and
+     * returns the median time in nanoseconds it takes to open it again.
+     */
+    public static long measureOpen(File directory, int entryCount,
+            DiskLruCache.Options options) throws IOException {
+        deleteDirectory(directory);
+        DiskLruCache cache = DiskLruCache.open(directory, 1, 1, MAX_SIZE, options);
+        for (int i = 0; i < entryCount; i++) {
+            DiskLruCache.Editor editor = cache.edit("k" + i);
+            editor.set(0, "v");
+            editor.commit();
+        }
+        cache.close();
+
+        long[] times = new long[OPENS];
+        for (int i = 0; i < OPENS; i++) {
+            long start = System.nanoTime();
+            cache = DiskLruCache.open(directory, 1, 1, MAX_SIZE, options);
+            times[i] = System.nanoTime() - start;
+            cache.close();
+        }
+        Arrays.sort(times);
+        return times[OPENS / 2];
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: JournalBenchmark <directory> [entry counts...]");
+            System.exit(1);
+        }
+        File root = new File(args[0]);
+        int[] entryCounts = DEFAULT_ENTRY_COUNTS;
+        if (args.length > 1) {
+            entryCounts = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                entryCounts[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        File textDirectory = new File(root, "text");
+        File binaryDirectory = new File(root, "binary");
+        DiskLruCache.Options text = new DiskLruCache.Options();
+        DiskLruCache.Options binary = new DiskLruCache.Options().binaryJournal(true);
+
+        try {
+            // warm up the JIT so the first row isn't mostly interpretation
+            measureOpen(textDirectory, entryCounts[0], text);
+            measureOpen(binaryDirectory, entryCounts[0], binary);
+
+            System.out.println("   entries     text ms   binary ms");
+            for (int entryCount : entryCounts) {
+                long textNanos = measureOpen(textDirectory, entryCount, text);
+                long binaryNanos = measureOpen(binaryDirectory, entryCount, binary);
+                System.out.println(String.format("%10d  %10.2f  %10.2f", entryCount,
+                        textNanos / 1e6, binaryNanos / 1e6));
+            }
+        } finally {
+            deleteDirectory(textDirectory);
+            deleteDirectory(binaryDirectory);
+        }
+    }
+
+    private static void deleteDirectory(File directory) throws IOException {
+        if (directory.isDirectory()) {
+            DiskLruCache.deleteContents(directory);
+            directory.delete();
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package libcore.io;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Stores small cache values back to back in append-only segment files named
+ * "segment.N.pack". A value is addressed by a location that combines its
+ * segment id and byte offset; its length is kept by the caller.
+ *
+ * <p>Values are only ever appended to the newest segment. Overwritten and
+ * removed values leave garbage behind; the owner tracks the live bytes of
+ * each segment and moves the survivors of a mostly dead segment to the
+ * newest one before deleting it.
+ *
+ * <p>Reads are positional reads on one shared read-only channel per segment,
+ * so serving a value doesn't open or close a file. A deleted segment keeps
+ * its channel until the last stream reading from it is closed.
+ */
+final class PackStore {
+    /** The location of a value that is stored in its own file. */
+    static final long IN_FILE = -1;
+
+    static final String SEGMENT_PREFIX = "segment.";
+    static final String SEGMENT_SUFFIX = ".pack";
+
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    private final File directory;
+    private final long segmentSize;
+    private final HashMap<Integer, Segment> segments = new HashMap<Integer, Segment>();
+    private Segment current;
+    private RandomAccessFile currentWriter;
+
+    PackStore(File directory, long segmentSize) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    static int segmentOf(long location) {
+        return (int) (location >>> OFFSET_BITS);
+    }
+
+    static long offsetOf(long location) {
+        return location & OFFSET_MASK;
+    }
+
+    private static long locationOf(int segment, long offset) {
+        return ((long) segment << OFFSET_BITS) | offset;
+    }
+
+    /**
+     * Registers the segments found in the directory. Their live bytes start
+     * at zero until {@link #markLive} is called for each stored value.
+     */
+    synchronized void load() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            try {
+                int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length()));
+                Segment segment = new Segment(id, file);
+                segment.length = file.length();
+                segments.put(id, segment);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+    }
+
+    synchronized void markLive(long location, long length) {
+        Segment segment = segments.get(segmentOf(location));
+        if (segment != null) {
+            segment.live += length;
+        }
+    }
+
+    /**
+     * Deletes the segments that no value refers to, such as the ones whose
+     * deletion was interrupted after compaction.
+     */
+    synchronized void deleteUnusedSegments() {
+        for (Segment segment : new ArrayList<Segment>(segments.values())) {
+            if (segment.live == 0) {
+                deleteSegment(segment.id);
+            }
+        }
+    }
+
+    /**
+     * Appends a value to the newest segment, starting a new one if it is
+     * full, and returns the value's location.
+     */
+    synchronized long append(byte[] data, int offset, int length) throws IOException {
+        if (current == null || current.length + length > segmentSize) {
+            startSegment();
+        }
+        long position = current.length;
+        currentWriter.seek(position);
+        currentWriter.write(data, offset, length);
+        current.length += length;
+        current.live += length;
+        return locationOf(current.id, position);
+    }
+
+    private void startSegment() throws IOException {
+        if (currentWriter != null) {
+            currentWriter.close();
+            currentWriter = null;
+        }
+        int id = 0;
+        for (Integer existing : segments.keySet()) {
+            id = Math.max(id, existing + 1);
+        }
+        File file = new File(directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX);
+        currentWriter = new RandomAccessFile(file, "rw");
+        currentWriter.setLength(0);
+        current = new Segment(id, file);
+        segments.put(id, current);
+    }
+
+    /**
+     * Records that the value at {@code location} is no longer referenced.
+     */
+    synchronized void release(long location, long length) {
+        Segment segment = segments.get(segmentOf(location));
+        if (segment != null) {
+            segment.live -= length;
+        }
+    }
+
+    /**
+     * Returns the bytes of segment {@code id} that are still referenced, or 0
+     * if there is no such segment.
+     */
+    synchronized long liveBytes(int id) {
+        Segment segment = segments.get(id);
+        return segment != null ? segment.live : 0;
+    }
+
+    /**
+     * Returns a segment that is mostly garbage and should be compacted, or -1.
+     * The segment being appended to is never returned.
+     */
+    synchronized int compactionCandidate() {
+        for (Segment segment : segments.values()) {
+            if (segment != current && segment.live * 2 < segment.length) {
+                return segment.id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the bytes used by all segments, including garbage.
+     */
+    synchronized long size() {
+        long size = 0;
+        for (Segment segment : segments.values()) {
+            size += segment.length;
+        }
+        return size;
+    }
+
+    /**
+     * Deletes a segment. Streams that are still reading from it keep working
+     * until they are closed.
+     */
+    synchronized void deleteSegment(int id) {
+        Segment segment = segments.remove(id);
+        if (segment == null) {
+            return;
+        }
+        if (segment == current) {
+            DiskLruCache.closeQuietly(currentWriter);
+            currentWriter = null;
+            current = null;
+        }
+        segment.deleted = true;
+        segment.file.delete();
+        if (segment.readers == 0) {
+            segment.closeChannel();
+        }
+    }
+
+    /**
+     * Opens a stream over the {@code length} bytes at {@code location}.
+     *
+     * @throws FileNotFoundException if the segment doesn't exist.
+     */
+    synchronized InputStream open(long location, long length) throws IOException {
+        Segment segment = segments.get(segmentOf(location));
+        if (segment == null) {
+            throw new FileNotFoundException("missing segment " + segmentOf(location));
+        }
+        if (segment.channel == null) {
+            segment.channel = new RandomAccessFile(segment.file, "r").getChannel();
+        }
+        segment.readers++;
+        return new SegmentInputStream(segment, offsetOf(location), length);
+    }
+
+    /**
+     * Reads a whole value into memory, for moving it to another segment.
+     */
+    byte[] read(long location, long length) throws IOException {
+        byte[] data = new byte[(int) length];
+        InputStream in = open(location, length);
+        try {
+            int total = 0;
+            while (total < data.length) {
+                int count = in.read(data, total, data.length - total);
+                if (count == -1) {
+                    throw new IOException("truncated value in segment " + segmentOf(location));
+                }
+                total += count;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private synchronized void closeReader(Segment segment) {
+        segment.readers--;
+        if (segment.readers == 0 && segment.deleted) {
+            segment.closeChannel();
+        }
+    }
+
+    synchronized void close() {
+        DiskLruCache.closeQuietly(currentWriter);
+        currentWriter = null;
+        current = null;
+        List<Segment> all = new ArrayList<Segment>(segments.values());
+        for (Segment segment : all) {
+            if (segment.readers == 0) {
+                segment.closeChannel();
+            } else {
+                // closed by the last reader
+                segment.deleted = true;
+            }
+        }
+    }
+
+    private static final class Segment {
+        private final int id;
+        private final File file;
+        private long length;
+        private long live;
+        private FileChannel channel;
+        private int readers;
+        private boolean deleted;
+
+        private Segment(int id, File file) {
+            this.id = id;
+            this.file = file;
+        }
+
+        private void closeChannel() {
+            DiskLruCache.closeQuietly(channel);
+            channel = null;
+        }
+    }
+
+    private final class SegmentInputStream extends InputStream {
+        private final Segment segment;
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+        private boolean closed;
+
+        private SegmentInputStream(Segment segment, long offset, long length) {
+            this.segment = segment;
+            this.channel = segment.channel;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        @Override public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+        }
+
+        @Override public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int count = (int) Math.min(length, end - position);
+            int read = channel.read(ByteBuffer.wrap(buffer, offset, count), position);
+            if (read == -1) {
+                return -1;
+            }
+            position += read;
+            return read;
+        }
+
+        @Override public long skip(long byteCount) {
+            long skipped = Math.max(0, Math.min(byteCount, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            closeReader(segment);
+        }
+    }
+}
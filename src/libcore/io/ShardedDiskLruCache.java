@@ -0,0 +1,254 @@
+package libcore.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * A disk cache made of independent {@link DiskLruCache} shards. Each shard
+ * has its own directory, journal and locks, and a key always goes to the
+ * shard picked by its hash. Lookups in one shard never wait for another,
+ * directories stay small, and each compaction only rewrites one shard's
+ * journal.
+ *
+ * <p>The size budget is split evenly between the shards. Keys are expected
+ * to be uniformly distributed hashes, so the shards fill up at the same rate
+ * and together stay within {@code maxSize}.
+ *
+ * <p>With a single shard the cache uses {@code directory} itself, laid out
+ * exactly like a plain {@link DiskLruCache}. With more shards they live in
+ * subdirectories, and a "shards" file records their count. Opening with a
+ * different count than the one on disk would route keys to the wrong shards,
+ * so the old contents are deleted instead.
+ */
+public final class ShardedDiskLruCache implements Closeable {
+    static final String SHARDS_FILE = "shards";
+    static final String SHARD_DIRECTORY_PREFIX = "shard-";
+
+    private final File directory;
+    private final long maxSize;
+    private final DiskLruCache[] shards;
+
+    private ShardedDiskLruCache(File directory, long maxSize, DiskLruCache[] shards) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.shards = shards;
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there.
+     *
+     * @param directory a writable directory
+     * @param appVersion
+     * @param valueCount the number of values per cache entry. Must be positive.
+     * @param maxSize the maximum number of bytes all shards together should use
+     * @param shardCount the number of shards. Must be positive.
+     * @param options applied to every shard
+     * @throws java.io.IOException if reading or writing the cache directory fails
+     */
+    public static ShardedDiskLruCache open(File directory, int appVersion, int valueCount,
+            long maxSize, int shardCount, DiskLruCache.Options options) throws IOException {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount <= 0");
+        }
+        if (maxSize < shardCount) {
+            throw new IllegalArgumentException("maxSize < shardCount");
+        }
+
+        if (directory.isDirectory() && readShardCount(directory) != shardCount) {
+            DiskLruCache.deleteContents(directory);
+        }
+        directory.mkdirs();
+        if (shardCount > 1) {
+            writeShardCount(directory, shardCount);
+        }
+
+        DiskLruCache[] shards = new DiskLruCache[shardCount];
+        long shardSize = maxSize / shardCount;
+        try {
+            if (shardCount == 1) {
+                shards[0] = DiskLruCache.open(directory, appVersion, valueCount, maxSize, options);
+            } else {
+                for (int i = 0; i < shardCount; i++) {
+                    File shardDirectory = new File(directory, SHARD_DIRECTORY_PREFIX + i);
+                    shardDirectory.mkdirs();
+                    shards[i] = DiskLruCache.open(shardDirectory, appVersion, valueCount,
+                            shardSize, options);
+                }
+            }
+        } catch (IOException e) {
+            for (DiskLruCache shard : shards) {
+                DiskLruCache.closeQuietly(shard);
+            }
+            throw e;
+        }
+        return new ShardedDiskLruCache(directory, maxSize, shards);
+    }
+
+    /**
+     * Returns the shard count recorded in {@code directory}; a directory
+     * without a "shards" file holds a single unsharded cache.
+     */
+    private static int readShardCount(File directory) {
+        File file = new File(directory, SHARDS_FILE);
+        if (!file.exists()) {
+            return 1;
+        }
+        try {
+            return Integer.parseInt(DiskLruCache.readFully(new FileReader(file)).trim());
+        } catch (IOException e) {
+            return -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static void writeShardCount(File directory, int shardCount) throws IOException {
+        Writer writer = new FileWriter(new File(directory, SHARDS_FILE));
+        try {
+            writer.write(Integer.toString(shardCount));
+        } finally {
+            writer.close();
+        }
+    }
+
+    private DiskLruCache shardFor(String key) {
+        // String.hashCode() is specified, so keys stay in their shard across runs
+        return shards[(key.hashCode() & 0x7fffffff) % shards.length];
+    }
+
+    /**
+     * Returns a snapshot of the entry named {@code key}, or null if it doesn't
+     * exist is not currently readable.
+     */
+    public DiskLruCache.Snapshot get(String key) throws IOException {
+        return shardFor(key).get(key);
+    }
+
+    /**
+     * Returns an editor for the entry named {@code key}, or null if another
+     * edit is in progress.
+     */
+    public DiskLruCache.Editor edit(String key) throws IOException {
+        return shardFor(key).edit(key);
+    }
+
+    /**
+     * Drops the entry for {@code key} if it exists and can be removed.
+     *
+     * @return true if an entry was removed.
+     */
+    public boolean remove(String key) throws IOException {
+        return shardFor(key).remove(key);
+    }
+
+    /**
+     * Returns the directory where this cache stores its data.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Returns the maximum number of bytes that all shards together should use
+     * to store their data.
+     */
+    public long maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of bytes currently used by all shards.
+     */
+    public long size() {
+        long size = 0;
+        for (DiskLruCache shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of reads that found a readable entry in any shard.
+     */
+    public long hitCount() {
+        long hitCount = 0;
+        for (DiskLruCache shard : shards) {
+            hitCount += shard.hitCount();
+        }
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of bytes all shards wrote to their journals since
+     * they were opened.
+     */
+    public long journalBytesWritten() {
+        long bytes = 0;
+        for (DiskLruCache shard : shards) {
+            bytes += shard.journalBytesWritten();
+        }
+        return bytes;
+    }
+
+    public boolean isClosed() {
+        return shards[0].isClosed();
+    }
+
+    /**
+     * Force buffered operations of every shard to the filesystem.
+     */
+    public void flush() throws IOException {
+        for (DiskLruCache shard : shards) {
+            shard.flush();
+        }
+    }
+
+    /**
+     * Closes every shard, even if closing one of them fails.
+     */
+    public void close() throws IOException {
+        IOException failure = null;
+        for (DiskLruCache shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Closes the cache and deletes all of its stored values.
+     */
+    public void delete() throws IOException {
+        close();
+        DiskLruCache.deleteContents(directory);
+    }
+
+    @Override
+    public String toString() {
+        long hitCount = hitCount();
+        // sampled READ records cost well under a byte per hit
+        double journalBytesPerHit = hitCount > 0
+                ? (double) journalBytesWritten() / hitCount : 0;
+        return "ShardedDiskLruCache[shards=" + shards.length + ", size=" + size()
+                + ", maxSize=" + maxSize + ", hits=" + hitCount
+                + ", journalBytesPerHit="
+                + String.format(Locale.US, "%.3f", journalBytesPerHit) + "]";
+    }
+}